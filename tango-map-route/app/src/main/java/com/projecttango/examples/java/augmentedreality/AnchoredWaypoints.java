@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Waypoints anchored to the drift corrected area description frame, with their positions solved
+ * back into the start of service frame the scene is rendered in.
+ * When a {@link DriftCorrection} moves the start of service frame, the positions are re-solved
+ * from the anchors in batches of a bounded size, so that the work can be spread over a few frames.
+ * Waypoints set before the first correction have no anchor yet: the first correction anchors them
+ * where they are instead of moving them.
+ * <p/>
+ * Positions and anchors are interleaved x, y, z primitive arrays.
+ * NOTE: This class is not thread-safe; it is meant to be used from the OpenGL thread.
+ */
+public class AnchoredWaypoints {
+    private float[] mPositions = new float[0];
+    private float[] mAnchors = new float[0];
+    private int mCount;
+    // Correction version the anchors were made with, 0 if not anchored yet.
+    private int mAnchorVersion;
+    // Correction version the positions are solved for, and the pass in progress towards another.
+    private int mSolvedVersion;
+    private int mSolvingVersion;
+    private int mNextToSolve;
+
+    /**
+     * Replaces the waypoints with {@code waypoints}, given in the start of service frame.
+     */
+    public void set(WaypointStore waypoints, DriftCorrection correction) {
+        ensureCapacity(waypoints.size());
+        mCount = waypoints.size();
+        for (int i = 0; i < mCount; i++) {
+            mPositions[3 * i] = waypoints.getX(i);
+            mPositions[3 * i + 1] = waypoints.getY(i);
+            mPositions[3 * i + 2] = waypoints.getZ(i);
+        }
+        anchor(correction);
+    }
+
+    /**
+     * Replaces the waypoints with the single given one, in the start of service frame.
+     */
+    public void set(float x, float y, float z, DriftCorrection correction) {
+        ensureCapacity(1);
+        mCount = 1;
+        mPositions[0] = x;
+        mPositions[1] = y;
+        mPositions[2] = z;
+        anchor(correction);
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public float getX(int i) {
+        return mPositions[3 * i];
+    }
+
+    public float getY(int i) {
+        return mPositions[3 * i + 1];
+    }
+
+    public float getZ(int i) {
+        return mPositions[3 * i + 2];
+    }
+
+    /**
+     * Continues re-solving the positions for the latest correction, processing at most
+     * {@code budget} waypoints. A pass interrupted by a newer correction starts over.
+     *
+     * @return the number of waypoints processed, counted against the caller's budget.
+     */
+    public int solve(DriftCorrection correction, int budget) {
+        int version = correction.getVersionGlThread();
+        if (version == mSolvedVersion) {
+            return 0;
+        }
+        if (version != mSolvingVersion) {
+            mSolvingVersion = version;
+            mNextToSolve = 0;
+        }
+        int from = mNextToSolve;
+        int to = Math.min(mCount, from + budget);
+        if (mAnchorVersion == 0) {
+            // Not anchored yet: anchor in place rather than move.
+            correction.toAreaGlThread(mPositions, mAnchors, from, to);
+        } else {
+            correction.toServiceGlThread(mAnchors, mPositions, from, to);
+        }
+        mNextToSolve = to;
+        if (to == mCount) {
+            if (mAnchorVersion == 0) {
+                mAnchorVersion = version;
+            }
+            mSolvedVersion = version;
+        }
+        return to - from;
+    }
+
+    /**
+     * Returns true if the positions are solved for the latest correction.
+     */
+    public boolean isSolved(DriftCorrection correction) {
+        return mSolvedVersion == correction.getVersionGlThread();
+    }
+
+    private void anchor(DriftCorrection correction) {
+        int version = correction.getVersionGlThread();
+        if (version != 0) {
+            correction.toAreaGlThread(mPositions, mAnchors, 0, mCount);
+        }
+        mAnchorVersion = version;
+        mSolvedVersion = version;
+        mSolvingVersion = version;
+        mNextToSolve = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (mPositions.length < 3 * count) {
+            mPositions = new float[3 * count];
+            mAnchors = new float[3 * count];
+        }
+    }
+}
@@ -50,20 +50,29 @@ import android.util.StringBuilderPrinter;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.view.SurfaceView;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AugmentedRealityActivity extends Activity implements View.OnTouchListener {
     private static final String TAG = AugmentedRealityActivity.class.getSimpleName();
-    private static final int INVALID_TEXTURE_ID = 0;
 
     private static final String CAMERA_PERMISSION = Manifest.permission.CAMERA;
     private static final int CAMERA_PERMISSION_CODE = 0;
@@ -72,16 +81,19 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     private AugmentedRealityRenderer mRenderer;
     private Tango mTango;
     private TangoConfig mConfig;
-    private boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
 
+    // Connection and connected texture state, read by the OpenGL thread without locking.
+    private final ConnectionState mConnectionState = new ConnectionState();
+    // Serializes connect and disconnect transitions. The OpenGL thread never takes it.
+    private final Object mConnectionTransitionLock = new Object();
+
     // Texture rendering related fields.
     // NOTE: Naming indicates which thread is in charge of updating this variable.
-    private int mConnectedTextureIdGlThread = INVALID_TEXTURE_ID;
     private AtomicBoolean mIsFrameAvailableTangoThread = new AtomicBoolean(false);
     private double mRgbTimestampGlThread;
 
-    private int mDisplayRotation = 0;
+    private volatile int mDisplayRotation = 0;
     private final Object mSharedLock = new Object();
     private boolean mIsRelocalized;
     private double mPreviousPoseTimeStamp;
@@ -89,6 +101,50 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     private static final int SECS_TO_MILLISECS = 1000;
     private static final double UPDATE_INTERVAL_MS = 1000.0;
     public TangoPoseData c_pose;
+    // Device poses from the pose callback, so most pose queries don't need to cross JNI.
+    private static final int POSE_HISTORY_CAPACITY = 512;
+    private final PoseHistory mDevicePoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+    // Device to camera poses, queried once per connection and display rotation, so that camera
+    // poses are composed from the history rather than queried through JNI.
+    private volatile CameraExtrinsics mCameraExtrinsics;
+    // NOTE: Naming indicates which thread is in charge of updating this variable.
+    private final double[] mDeviceTranslationTangoThread = new double[3];
+    private final double[] mDeviceRotationTangoThread = new double[4];
+    private final double[] mDepthTranslationTangoThread = new double[3];
+    private final double[] mDepthRotationTangoThread = new double[4];
+    private final double[] mColorTranslationTangoThread = new double[3];
+    private final double[] mColorRotationTangoThread = new double[4];
+    private final double[] mCameraTranslationGlThread = new double[3];
+    private final double[] mCameraRotationGlThread = new double[4];
+    // Whether to load the latest ADF, as chosen in the StartActivity.
+    private boolean mIsLoadAdf;
+    // UUID of the ADF routes are anchored to, or null when no ADF is loaded.
+    private volatile String mAdfUuid;
+    // The drawn route is saved to this file, anchored to the loaded ADF, when the activity stops
+    // and restored from it the next time the same ADF is loaded.
+    private static final String ROUTE_FILE_NAME = "route";
+    // Multi-floor sites are described by this file, anchored to the ADF, loaded on every
+    // connection with an ADF if present.
+    private static final String FLOOR_PLAN_FILE_NAME = "floorplan.txt";
+    // Work on imported data in the area description frame, waiting for the device to be
+    // localized to be run in the route file thread. Guarded by mSharedLock.
+    private final List<Runnable> mLocalizedTasks = new ArrayList<Runnable>();
+    // The imported route also stays drawn in its own color next to the planned one, which is
+    // re-planned from it, until a new destination is tapped.
+    private static final int IMPORTED_ROUTE_COLOR = 0xffff9933;
+    private static final int NO_ROUTE = -1;
+    private volatile int mImportedRouteId = NO_ROUTE;
+    // Route files are read and written away from the UI and OpenGL threads.
+    private final ExecutorService mRouteFileExecutor = Executors.newSingleThreadExecutor();
+    // Fits tapped destinations against the latest point cloud, off the UI and OpenGL threads.
+    private TapPlacement mTapPlacement;
+    // Number of point clouds handed to the occlusion map.
+    private long mPointCloudSequence;
+    // Rolling performance counters, written to a metrics file and shown on debug builds.
+    private static final long METRICS_PERIOD_MS = 5000;
+    private PerformanceMetrics mMetrics;
+    // Time the latest color camera frame became available, from System.nanoTime.
+    private volatile long mFrameAvailableNanos;
 
 
 
@@ -99,7 +155,35 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         setContentView(R.layout.activity_main);
         mSurfaceView = (SurfaceView) findViewById(R.id.surfaceview);
         mSurfaceView.setOnTouchListener(this);
+        mIsLoadAdf = getIntent().getBooleanExtra(StartActivity.LOAD_ADF, false);
         mRenderer = new AugmentedRealityRenderer(this);
+        mTapPlacement = new TapPlacement(new TapPlacement.OnPlacedListener() {
+            @Override
+            public void onPlaced(float x, float y, float z) {
+                mRenderer.setDestination(x, z);
+                int importedRouteId = mImportedRouteId;
+                if (importedRouteId != NO_ROUTE) {
+                    mRenderer.setRouteVisible(importedRouteId, false);
+                }
+            }
+        });
+        mMetrics = new PerformanceMetrics(new File(getFilesDir(), "metrics"), METRICS_PERIOD_MS);
+        if (BuildConfig.DEBUG) {
+            final TextView metricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+            metricsOverlay.setVisibility(View.VISIBLE);
+            mMetrics.setListener(new PerformanceMetrics.Listener() {
+                @Override
+                public void onMetrics(final String summary) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            metricsOverlay.setText(summary);
+                        }
+                    });
+                }
+            });
+        }
+        mMetrics.start();
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
@@ -110,9 +194,7 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
 
                 @Override
                 public void onDisplayChanged(int displayId) {
-                    synchronized (this) {
-                        setDisplayRotation();
-                    }
+                    setDisplayRotation();
                 }
 
                 @Override
@@ -140,30 +222,49 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     @Override
     public void onStop() {
         super.onStop();
+        // Save the route while the latest drift correction is still known.
+        if (mAdfUuid != null) {
+            exportRoute(new File(getFilesDir(), ROUTE_FILE_NAME));
+        }
 
-        // Synchronize against disconnecting while the service is being used in the OpenGL thread or
-        // in the UI thread.
+        // Synchronize against a connection in progress. Leaving the connected state also waits
+        // for the frame being rendered in the OpenGL thread, if any, to stop using the service.
         // NOTE: DO NOT lock against this same object in the Tango callback thread. Tango.disconnect
         // will block here until all Tango callback calls are finished. If you lock against this
         // object in a Tango callback thread it will cause a deadlock.
-        synchronized (this) {
+        synchronized (mConnectionTransitionLock) {
             try {
-                // mTango may be null if the app is closed before permissions are granted.
-                if (mTango != null) {
-                    mTango.disconnectCamera(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
-                    mTango.disconnect();
-                }
-                // We need to invalidate the connected texture ID so that we cause a
+                // The connected texture ID is reset with the state so that we cause a
                 // re-connection in the OpenGL thread after resume.
-                mConnectedTextureIdGlThread = INVALID_TEXTURE_ID;
+                Tango tango = mConnectionState.disconnect();
+                // The service may be null if the app is closed before permissions are granted.
+                if (tango != null) {
+                    tango.disconnectCamera(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+                    tango.disconnect();
+                }
                 mTango = null;
-                mIsConnected = false;
+                mCameraExtrinsics = null;
+                mDevicePoseHistory.clear();
+                // The next connection starts a new start of service frame.
+                synchronized (mSharedLock) {
+                    mIsRelocalized = false;
+                    mLocalizedTasks.clear();
+                }
             } catch (TangoErrorException e) {
                 Log.e(TAG, getString(R.string.exception_tango_error), e);
             }
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mTapPlacement.shutdown();
+        mRouteFileExecutor.shutdown();
+        mMetrics.shutdown();
+        mRenderer.shutdown();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -175,47 +276,56 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         // Initialize Tango Service as a normal Android Service. Since we call mTango.disconnect()
         // in onPause, this will unbind Tango Service, so every time onResume gets called we
         // should create a new Tango object.
-        mTango = new Tango(AugmentedRealityActivity.this, new Runnable() {
-            // Pass in a Runnable to be called from UI thread when Tango is ready. This Runnable
-            // will be running on a new thread.
-            // When Tango is ready, we can call Tango functions safely here only when there
-            // are no UI thread changes involved.
-            @Override
-            public void run() {
-                // Synchronize against disconnecting while the service is being used in the
-                // OpenGL thread or in the UI thread.
-                StringBuilder stringBuilder = new StringBuilder();
-                stringBuilder.append(mTango.listAreaDescriptions().get(0)+" tango run!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                Log.i(TAG, stringBuilder.toString());
-
-                synchronized (AugmentedRealityActivity.this) {
-                    try {
-
-                        mConfig = setupTangoConfig(mTango);
-                        Log.i(TAG, "mConfig setup!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-
-                        mTango.connect(mConfig);
-                        Log.i(TAG, "mConfig connect!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                        startupTango();
-                        TangoSupport.initialize(mTango);
-                        mIsConnected = true;
-                        setDisplayRotation();
-
-                    } catch (TangoOutOfDateException e) {
-                        Log.e(TAG, getString(R.string.exception_out_of_date), e);
-                        showsToastAndFinishOnUiThread(R.string.exception_out_of_date);
-                    } catch (TangoErrorException e) {
-                        Log.e(TAG, getString(R.string.exception_tango_error), e);
-                        showsToastAndFinishOnUiThread(R.string.exception_tango_error);
-                    } catch (TangoInvalidException e) {
-                        Log.e(TAG, getString(R.string.exception_tango_invalid), e);
-                        showsToastAndFinishOnUiThread(R.string.exception_tango_invalid);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        // The service object is published under the transition lock so that the ready Runnable
+        // sees it.
+        synchronized (mConnectionTransitionLock) {
+            mTango = new Tango(AugmentedRealityActivity.this, new Runnable() {
+                // Pass in a Runnable to be called from UI thread when Tango is ready. This Runnable
+                // will be running on a new thread.
+                // When Tango is ready, we can call Tango functions safely here only when there
+                // are no UI thread changes involved.
+                @Override
+                public void run() {
+                    // Synchronize against disconnecting from the UI thread while connecting.
+                    synchronized (mConnectionTransitionLock) {
+                        // The activity may have been stopped before Tango was ready.
+                        if (mTango == null || mConnectionState.get().tango != mTango) {
+                            return;
+                        }
+                        try {
+                            mConfig = setupTangoConfig(mTango);
+                            mTango.connect(mConfig);
+                            startupTango();
+                            TangoSupport.initialize(mTango);
+                            mConnectionState.connected(mTango);
+                            setDisplayRotation();
+                            File floorPlanFile = new File(getFilesDir(), FLOOR_PLAN_FILE_NAME);
+                            if (mAdfUuid != null && floorPlanFile.exists()) {
+                                loadFloorPlan(floorPlanFile);
+                            }
+                            File routeFile = new File(getFilesDir(), ROUTE_FILE_NAME);
+                            if (mAdfUuid != null && routeFile.exists()) {
+                                importRoute(routeFile);
+                            }
+                        } catch (TangoOutOfDateException e) {
+                            Log.e(TAG, getString(R.string.exception_out_of_date), e);
+                            showsToastAndFinishOnUiThread(R.string.exception_out_of_date);
+                        } catch (TangoErrorException e) {
+                            Log.e(TAG, getString(R.string.exception_tango_error), e);
+                            showsToastAndFinishOnUiThread(R.string.exception_tango_error);
+                        } catch (TangoInvalidException e) {
+                            Log.e(TAG, getString(R.string.exception_tango_invalid), e);
+                            showsToastAndFinishOnUiThread(R.string.exception_tango_invalid);
+                        } catch (Exception e) {
+                            // Anything else would leave the view black, waiting for a connection.
+                            Log.e(TAG, getString(R.string.exception_tango_error), e);
+                            showsToastAndFinishOnUiThread(R.string.exception_tango_error);
+                        }
                     }
                 }
-            }
-        });
+            });
+            mConnectionState.connecting(mTango);
+        }
     }
 
     private TangoConfig setupTangoConfig(Tango tango) {
@@ -228,17 +338,23 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         config.putBoolean(TangoConfig.KEY_BOOLEAN_LOWLATENCYIMUINTEGRATION, true);
         // Drift correction allows motion tracking to recover after it loses tracking.
         config.putBoolean(TangoConfig.KEY_BOOLEAN_DRIFT_CORRECTION, true);
-
-        ArrayList<String> fullUuidList;
-        // Returns a list of ADFs with their UUIDs.
-        fullUuidList = tango.listAreaDescriptions();
-
-        //////// ISSUE is here!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-//        config.putString(TangoConfig.KEY_STRING_AREADESCRIPTION,fullUuidList.get(fullUuidList.size() - 1));
-//        config.putBoolean(TangoConfig.KEY_BOOLEAN_LEARNINGMODE, false);
-
-
-
+        // Depth is used to hide route markers behind real geometry.
+        config.putBoolean(TangoConfig.KEY_BOOLEAN_DEPTH, true);
+        config.putInt(TangoConfig.KEY_INT_DEPTH_MODE, TangoConfig.TANGO_DEPTH_MODE_POINT_CLOUD);
+
+        // Load the most recent ADF, if asked to and there is one, so that routes can be anchored
+        // to it.
+        mAdfUuid = null;
+        if (mIsLoadAdf) {
+            ArrayList<String> fullUuidList = tango.listAreaDescriptions();
+            if (fullUuidList.size() > 0) {
+                mAdfUuid = fullUuidList.get(fullUuidList.size() - 1);
+                config.putString(TangoConfig.KEY_STRING_AREADESCRIPTION, mAdfUuid);
+                config.putBoolean(TangoConfig.KEY_BOOLEAN_LEARNINGMODE, false);
+            } else {
+                Log.w(TAG, "No ADF to load");
+            }
+        }
         return config;
     }
 
@@ -266,15 +382,18 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
 //        framePairs.add(new TangoCoordinateFramePair(
 //                TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
 //                TangoPoseData.COORDINATE_FRAME_DEVICE));
-//        framePairs.add(new TangoCoordinateFramePair(
-//                TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
-//                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE));
+        // Drift correction and relocalization are reported as moves of the start of service frame
+        // in the area description frame.
+        framePairs.add(new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
+                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE));
 
         mTango.connectListener(framePairs, new OnTangoUpdateListener() {
             @Override
             public void onPoseAvailable(TangoPoseData pose) {
                 // We are not using onPoseAvailable for this app.
 
+                mMetrics.onPoseCallback();
                 synchronized (mSharedLock) {
                     // Check for Device wrt ADF pose, Device wrt Start of Service pose, Start of
                     // Service wrt ADF pose (this pose determines if the device is relocalized or
@@ -282,7 +401,11 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
 //                    if(pose.baseFrame==1 && pose.targetFrame==4){
 //                        logPose(pose);}
                     c_pose = pose;
-
+                    if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
+                            && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE
+                            && pose.statusCode == TangoPoseData.POSE_VALID) {
+                        mDevicePoseHistory.add(pose.timestamp, pose.translation, pose.rotation);
+                    }
 
 
 
@@ -291,6 +414,12 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                             .COORDINATE_FRAME_START_OF_SERVICE) {
                         if (pose.statusCode == TangoPoseData.POSE_VALID) {
                             mIsRelocalized = true;
+                            mRenderer.getDriftCorrection().update(pose.translation,
+                                    pose.rotation);
+                            for (int i = 0; i < mLocalizedTasks.size(); i++) {
+                                mRouteFileExecutor.execute(mLocalizedTasks.get(i));
+                            }
+                            mLocalizedTasks.clear();
                         } else {
                             mIsRelocalized = false;
                         }
@@ -326,7 +455,42 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
 
             @Override
             public void onPointCloudAvailable(TangoPointCloudData pointCloud) {
-                // We are not using onPointCloudAvailable for this app.
+                // Project the point cloud into the occlusion depth map, as seen by the color
+                // camera at the time of the point cloud.
+                try {
+                    int rotation = mDisplayRotation;
+                    CameraExtrinsics extrinsics = mCameraExtrinsics;
+                    if (extrinsics == null || extrinsics.getDisplayRotation() != rotation
+                            || !getDevicePoseAtTime(pointCloud.timestamp,
+                            mDeviceTranslationTangoThread, mDeviceRotationTangoThread)) {
+                        return;
+                    }
+                    extrinsics.getDepthPose(mDeviceTranslationTangoThread,
+                            mDeviceRotationTangoThread, mDepthTranslationTangoThread,
+                            mDepthRotationTangoThread);
+                    extrinsics.getColorPose(mDeviceTranslationTangoThread,
+                            mDeviceRotationTangoThread, mColorTranslationTangoThread,
+                            mColorRotationTangoThread);
+                    TangoCameraIntrinsics intrinsics =
+                            TangoSupport.getCameraIntrinsicsBasedOnDisplayRotation(
+                                    TangoCameraIntrinsics.TANGO_CAMERA_COLOR, rotation);
+                    mRenderer.getOcclusionMap().update(pointCloud.points,
+                            pointCloud.numPoints,
+                            mDepthTranslationTangoThread, mDepthRotationTangoThread,
+                            mColorTranslationTangoThread, mColorRotationTangoThread,
+                            (float) intrinsics.fx, (float) intrinsics.fy,
+                            (float) intrinsics.cx, (float) intrinsics.cy,
+                            intrinsics.width, intrinsics.height,
+                            ++mPointCloudSequence);
+                    mTapPlacement.updatePointCloud(pointCloud.points, pointCloud.numPoints,
+                            mDepthTranslationTangoThread, mDepthRotationTangoThread,
+                            mColorTranslationTangoThread, mColorRotationTangoThread,
+                            (float) intrinsics.fx, (float) intrinsics.fy,
+                            (float) intrinsics.cx, (float) intrinsics.cy,
+                            intrinsics.width, intrinsics.height);
+                } catch (TangoErrorException e) {
+                    Log.e(TAG, "Tango API call error while updating the occlusion map", e);
+                }
             }
 
             @Override
@@ -351,6 +515,7 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                     }
 
                     // Mark a camera frame as available for rendering in the OpenGL thread.
+                    mFrameAvailableNanos = System.nanoTime();
                     mIsFrameAvailableTangoThread.set(true);
                     // Trigger a Rajawali render to update the scene with the new RGB data.
                     mSurfaceView.requestRender();
@@ -359,6 +524,203 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
         });
     }
 
+    /**
+     * Gets the device pose in the start of service frame at the given time, using the Tango
+     * engine convention. The pose is answered from the recorded pose callbacks when possible and
+     * only asks the Tango service, through JNI, for times outside of the recorded range.
+     *
+     * @param outTranslation x, y, z.
+     * @param outRotation    x, y, z, w quaternion.
+     * @return false if there is no valid pose at that time.
+     */
+    public boolean getDevicePoseAtTime(double timestamp, double[] outTranslation,
+                                       double[] outRotation) {
+        if (mDevicePoseHistory.getPoseAtTime(timestamp, outTranslation, outRotation)) {
+            return true;
+        }
+        if (!mConnectionState.get().isConnected()) {
+            return false;
+        }
+        try {
+            TangoPoseData pose = TangoSupport.getPoseAtTime(timestamp,
+                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                    TangoPoseData.COORDINATE_FRAME_DEVICE,
+                    TangoSupport.ENGINE_TANGO,
+                    TangoSupport.ENGINE_TANGO,
+                    TangoSupport.ROTATION_IGNORED);
+            mMetrics.onGetPoseAtTime();
+            if (pose.statusCode != TangoPoseData.POSE_VALID) {
+                return false;
+            }
+            System.arraycopy(pose.translation, 0, outTranslation, 0, 3);
+            System.arraycopy(pose.rotation, 0, outRotation, 0, 4);
+            return true;
+        } catch (TangoErrorException e) {
+            Log.e(TAG, "Tango API call error while getting the device pose", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the route currently drawn, anchored to the loaded ADF, to {@code file} in the
+     * background. Without an ADF the route is written in the start of service frame, which only
+     * makes sense for the current session. Nothing is written if there is no route, or if the
+     * device hasn't been localized against the ADF yet.
+     */
+    public void exportRoute(final File file) {
+        final WaypointStore waypoints = new WaypointStore();
+        mRenderer.copyRoute(waypoints);
+        final String adfUuid = mAdfUuid;
+        final DriftCorrection correction = mRenderer.getDriftCorrection();
+        final boolean isRelocalized;
+        synchronized (mSharedLock) {
+            isRelocalized = mIsRelocalized;
+        }
+        mRouteFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (waypoints.size() == 0) {
+                    return;
+                }
+                if (adfUuid != null && (!isRelocalized || !correction.toArea(waypoints))) {
+                    Log.w(TAG, "Not localized against ADF " + adfUuid + ", not exporting route");
+                    return;
+                }
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    RouteFile.write(out, adfUuid, waypoints);
+                    Log.i(TAG, "Exported " + waypoints.size() + " waypoints to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception exporting route to " + file, e);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a route from {@code file} in the background and hands it to the renderer. A route
+     * anchored to an ADF is only drawn with that ADF loaded, once the device is localized
+     * against it.
+     */
+    public void importRoute(final File file) {
+        mRouteFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    WaypointStore waypoints = new WaypointStore();
+                    String adfUuid = RouteFile.read(in, waypoints);
+                    Log.i(TAG, "Imported " + waypoints.size() + " waypoints from " + file);
+                    if (adfUuid == null) {
+                        showImportedRoute(waypoints);
+                    } else if (!adfUuid.equals(mAdfUuid)) {
+                        Log.w(TAG, "Route " + file + " is anchored to ADF " + adfUuid
+                                + " which is not loaded");
+                    } else {
+                        applyAreaRoute(waypoints);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception importing route from " + file, e);
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a floor plan from {@code file} in the background and hands it to the renderer, which
+     * then follows the route floor by floor. The plan is anchored to the loaded ADF, so it is
+     * handed over once the device is localized against it.
+     */
+    public void loadFloorPlan(final File file) {
+        mRouteFileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    final FloorPlanFile.Result result = FloorPlanFile.read(in);
+                    Log.i(TAG, "Loaded " + result.floorPlan.getFloorCount()
+                            + " floors from " + file);
+                    runWhenLocalized(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (result.floorPlan.toService(mRenderer.getDriftCorrection())) {
+                                result.floorPlan.build();
+                                mRenderer.setFloorPlan(result.floorPlan,
+                                        result.destinationFloor);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception loading floor plan from " + file, e);
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves a route from the area description frame into the start of service frame and hands it
+     * to the renderer, once the device is localized.
+     * This is run in the route file thread.
+     */
+    private void applyAreaRoute(final WaypointStore waypoints) {
+        runWhenLocalized(new Runnable() {
+            @Override
+            public void run() {
+                if (mRenderer.getDriftCorrection().toService(waypoints)) {
+                    showImportedRoute(waypoints);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} right away if the device is localized against the ADF, else keeps it for
+     * the pose callback to run in the route file thread once it is.
+     * This is run in the route file thread.
+     */
+    private void runWhenLocalized(Runnable task) {
+        synchronized (mSharedLock) {
+            if (!mIsRelocalized) {
+                mLocalizedTasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Hands an imported route in the start of service frame to the renderer, both to follow and
+     * to keep drawn in its own color, replacing the previously imported one.
+     * This is run in the route file thread.
+     */
+    private void showImportedRoute(WaypointStore waypoints) {
+        if (mImportedRouteId != NO_ROUTE) {
+            mRenderer.removeRoute(mImportedRouteId);
+        }
+        mImportedRouteId = mRenderer.addRoute(waypoints, IMPORTED_ROUTE_COLOR);
+        mRenderer.setImportedRoute(waypoints);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Exception closing file", e);
+        }
+    }
+
     /**
      * Connects the view and renderer to the color camara and callbacks.
      */
@@ -373,14 +735,20 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                 // onRender callbacks have a chance to run and before scene objects are rendered
                 // into the scene.
 
-                // Prevent concurrent access to {@code mIsFrameAvailableTangoThread} from the Tango
-                // callback thread and service disconnection from an onPause event.
+                mMetrics.onFrameRendered();
+                mMetrics.setMarkerCount(mRenderer.getMarkerCountGlThread());
+
+                // The connection state is read once for the whole frame without locking. A
+                // disconnection from an onStop event waits for the frame to end before tearing
+                // down the service.
                 try {
-                    synchronized (AugmentedRealityActivity.this) {
-                        // Don't execute tango API actions if we're not connected to the service.
-                        if (!mIsConnected) {
-                            return;
-                        }
+                    ConnectionState.Snapshot connection = mConnectionState.beginFrame();
+                    // Don't execute tango API actions if we're not connected to the service.
+                    if (connection == null) {
+                        return;
+                    }
+                    try {
+                        Tango tango = connection.tango;
 
                         // Set up scene camera projection to match RGB camera intrinsics.
                         if (!mRenderer.isSceneCameraConfigured()) {
@@ -394,45 +762,55 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
                         // Connect the camera texture to the OpenGL Texture if necessary
                         // NOTE: When the OpenGL context is recycled, Rajawali may regenerate the
                         // texture with a different ID.
-                        if (mConnectedTextureIdGlThread != mRenderer.getTextureId()) {
-                            mTango.connectTextureId(TangoCameraIntrinsics.TANGO_CAMERA_COLOR,
+                        if (connection.connectedTextureId != mRenderer.getTextureId()) {
+                            tango.connectTextureId(TangoCameraIntrinsics.TANGO_CAMERA_COLOR,
+                                    mRenderer.getTextureId());
+                            mConnectionState.textureConnected(connection,
                                     mRenderer.getTextureId());
-                            mConnectedTextureIdGlThread = mRenderer.getTextureId();
                             Log.d(TAG, "connected to texture id: " + mRenderer.getTextureId());
                         }
+                        // Only rebinds when the rotation changed or the OpenGL context was lost.
+                        mRenderer.updateColorCameraTextureUvGlThread(mDisplayRotation);
 
                         // If there is a new RGB camera frame available, update the texture
                         // with it.
                         if (mIsFrameAvailableTangoThread.compareAndSet(true, false)) {
                             mRgbTimestampGlThread =
-                                    mTango.updateTexture(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+                                    tango.updateTexture(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+                            mMetrics.onUpdateTexture();
                         }
 
                         // If a new RGB frame has been rendered, update the camera pose to match.
                         if (mRgbTimestampGlThread > mCameraPoseTimestamp) {
                             // Calculate the camera color pose at the camera frame update time in
-                            // OpenGL engine.
-                            TangoPoseData lastFramePose = TangoSupport.getPoseAtTime(
-                                    mRgbTimestampGlThread,
-                                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                    TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
-                                    TangoSupport.ENGINE_OPENGL,
-                                    TangoSupport.ENGINE_OPENGL,
-                                    mDisplayRotation);
-                            if (lastFramePose.statusCode == TangoPoseData.POSE_VALID) {
+                            // OpenGL engine, from the device pose and the camera extrinsics.
+                            CameraExtrinsics extrinsics = mCameraExtrinsics;
+                            if (extrinsics != null
+                                    && extrinsics.getDisplayRotation() == mDisplayRotation
+                                    && getDevicePoseAtTime(mRgbTimestampGlThread,
+                                    mCameraTranslationGlThread, mCameraRotationGlThread)) {
+                                extrinsics.getColorPose(mCameraTranslationGlThread,
+                                        mCameraRotationGlThread, mCameraTranslationGlThread,
+                                        mCameraRotationGlThread);
                                 // Update the camera pose from the renderer
-                                mRenderer.updateRenderCameraPose(lastFramePose);
-                                mCameraPoseTimestamp = lastFramePose.timestamp;
+                                mRenderer.updateRenderCameraPose(mRgbTimestampGlThread,
+                                        mCameraTranslationGlThread, mCameraRotationGlThread);
+                                mCameraPoseTimestamp = mRgbTimestampGlThread;
+                                mMetrics.recordPoseToRenderLatency(
+                                        System.nanoTime() - mFrameAvailableNanos);
                             } else {
                                 // When the pose status is not valid, it indicates the tracking has
                                 // been lost. In this case, we simply stop rendering.
                                 //
                                 // This is also the place to display UI to suggest the user walk
                                 // to recover tracking.
+                                mRenderer.getPoseSmoother().reset();
                                 Log.w(TAG, "Can't get device pose at time: " +
                                         mRgbTimestampGlThread);
                             }
                         }
+                    } finally {
+                        mConnectionState.endFrame();
                     }
 
                     // Avoid crashing the application due to unhandled exceptions.
@@ -503,20 +881,56 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     private void setDisplayRotation() {
         Display display = getWindowManager().getDefaultDisplay();
         mDisplayRotation = display.getRotation();
+        if (mConnectionState.get().isConnected()) {
+            updateCameraExtrinsics(mDisplayRotation);
+        }
 
         // We also need to update the camera texture UV coordinates. This must be run in the OpenGL
         // thread.
         mSurfaceView.queueEvent(new Runnable() {
             @Override
             public void run() {
-                if (mIsConnected) {
-
-                    mRenderer.updateColorCameraTextureUvGlThread(mDisplayRotation, c_pose);
+                if (mConnectionState.get().isConnected()) {
+                    mRenderer.updateColorCameraTextureUvGlThread(mDisplayRotation);
                 }
             }
         });
     }
 
+    /**
+     * Queries the device to camera poses for the given display rotation. The camera poses are
+     * composed from device poses until the next connection or display rotation change.
+     */
+    private void updateCameraExtrinsics(int rotation) {
+        try {
+            TangoPoseData depthPose = TangoSupport.getPoseAtTime(0.0,
+                    TangoPoseData.COORDINATE_FRAME_DEVICE,
+                    TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                    TangoSupport.ENGINE_TANGO,
+                    TangoSupport.ENGINE_TANGO,
+                    TangoSupport.ROTATION_IGNORED);
+            mMetrics.onGetPoseAtTime();
+            TangoPoseData colorPose = TangoSupport.getPoseAtTime(0.0,
+                    TangoPoseData.COORDINATE_FRAME_DEVICE,
+                    TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                    TangoSupport.ENGINE_TANGO,
+                    TangoSupport.ENGINE_OPENGL,
+                    rotation);
+            mMetrics.onGetPoseAtTime();
+            if (depthPose.statusCode != TangoPoseData.POSE_VALID
+                    || colorPose.statusCode != TangoPoseData.POSE_VALID) {
+                Log.w(TAG, "Can't get the camera extrinsics");
+                mCameraExtrinsics = null;
+                return;
+            }
+            mCameraExtrinsics = new CameraExtrinsics(depthPose.translation, depthPose.rotation,
+                    colorPose.translation, colorPose.rotation, rotation);
+        } catch (TangoErrorException e) {
+            Log.e(TAG, "Tango API call error while getting the camera extrinsics", e);
+            mCameraExtrinsics = null;
+        }
+    }
+
     /**
      * Check to see we have the necessary permissions for this app, and ask for them if we don't.
      *
@@ -600,6 +1014,12 @@ public class AugmentedRealityActivity extends Activity implements View.OnTouchLi
     @Override
     public boolean onTouch(View view, MotionEvent motionEvent) {
         mRenderer.onTouchEvent(motionEvent);
+        // Tapping the camera view sets the route destination.
+        if (motionEvent.getAction() == MotionEvent.ACTION_UP
+                && view.getWidth() > 0 && view.getHeight() > 0) {
+            mTapPlacement.onTap(motionEvent.getX() / view.getWidth(),
+                    motionEvent.getY() / view.getHeight());
+        }
         return true;
     }
     private void logPose(TangoPoseData pose) {
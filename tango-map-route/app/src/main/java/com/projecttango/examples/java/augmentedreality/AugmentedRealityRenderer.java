@@ -15,27 +15,23 @@
  */
 package com.projecttango.examples.java.augmentedreality;
 
-import com.google.atap.tangoservice.TangoPoseData;
 import com.google.tango.support.TangoSupport;
 
 import android.content.Context;
 
+import android.graphics.Color;
+import android.opengl.GLES20;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.MotionEvent;
-import android.view.animation.LinearInterpolator;
 
 import org.rajawali3d.Object3D;
-import org.rajawali3d.animation.Animation;
-import org.rajawali3d.animation.Animation3D;
-import org.rajawali3d.animation.EllipticalOrbitAnimation3D;
-import org.rajawali3d.animation.RotateOnAxisAnimation;
 import org.rajawali3d.lights.DirectionalLight;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.methods.DiffuseMethod;
 import org.rajawali3d.materials.textures.ATexture;
 import org.rajawali3d.materials.textures.StreamingTexture;
-import org.rajawali3d.materials.textures.Texture;
 import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
@@ -45,6 +41,15 @@ import org.rajawali3d.renderer.Renderer;
 import org.rajawali3d.util.ObjectColorPicker;
 import org.rajawali3d.util.OnObjectPickedListener;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
@@ -56,6 +61,67 @@ import javax.microedition.khronos.opengles.GL10;
 public class AugmentedRealityRenderer extends Renderer implements OnObjectPickedListener {
     private static final String TAG = AugmentedRealityRenderer.class.getSimpleName();
 
+    // Routing grid resolution and extra room around source and destination, in meters.
+    private static final float ROUTE_CELL_SIZE = 0.25f;
+    private static final float ROUTE_GRID_MARGIN = 5f;
+    // Place a route marker every this many grid cells along the route.
+    private static final int ROUTE_MARKER_STRIDE = 2;
+    // Most routes drawn at once, the planned route included, all sharing one mesh.
+    private static final int MAX_ROUTES = 8;
+    private static final int PLANNED_ROUTE_COLOR = 0xff3380ff;
+    // Most anchored waypoints re-solved per frame after a drift correction.
+    private static final int MAX_ANCHOR_SOLVES_PER_FRAME = 2048;
+    // Destinations further than this, in meters, are only routed towards up to that distance, so
+    // that the routing grid stays bounded.
+    private static final float MAX_ROUTE_DISTANCE = 100f;
+    private static final int MAX_ROUTE_GRID_CELLS =
+            (int) Math.ceil((MAX_ROUTE_DISTANCE + 2 * ROUTE_GRID_MARGIN) / ROUTE_CELL_SIZE);
+    // Size in pixels of each icon in the marker texture atlas.
+    private static final int MARKER_ICON_SIZE = 64;
+    // Resolution of the depth map used to hide markers behind real geometry.
+    private static final int OCCLUSION_MAP_WIDTH = 80;
+    private static final int OCCLUSION_MAP_HEIGHT = 60;
+    // Number of consecutive waypoint markers tested for occlusion together.
+    private static final int WAYPOINT_CLUSTER_SIZE = 4;
+    private static final float WAYPOINT_MARKER_RADIUS = 0.05f;
+
+    // Kinds of changes to the extra routes, queued from any thread.
+    private static final int ROUTE_ADD = 0;
+    private static final int ROUTE_REMOVE = 1;
+    private static final int ROUTE_SHOW = 2;
+    private static final int ROUTE_HIDE = 3;
+
+    /**
+     * A change to an extra route, handed over to the OpenGL thread.
+     */
+    private static final class RouteChange {
+        final int type;
+        final int id;
+        final WaypointStore waypoints;
+        final int color;
+
+        RouteChange(int type, int id, WaypointStore waypoints, int color) {
+            this.type = type;
+            this.id = id;
+            this.waypoints = waypoints;
+            this.color = color;
+        }
+    }
+
+    /**
+     * A route drawn next to the planned one, and the slot it has in the route mesh.
+     */
+    private static final class ExtraRoute {
+        final AnchoredWaypoints waypoints = new AnchoredWaypoints();
+        final int color;
+        boolean visible = true;
+        int slot = RouteGuidanceMesh.NO_ROUTE;
+
+        ExtraRoute(int color) {
+            this.color = color;
+        }
+    }
+
     private float[] textureCoords0 = new float[]{0.0F, 1.0F, 0.0F, 0.0F, 1.0F, 1.0F, 1.0F, 0.0F};
 
     // Rajawali texture used to render the Tango color camera.
@@ -65,6 +131,12 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
     private boolean mSceneCameraConfigured;
 
     private ScreenQuad mBackgroundQuad;
+    // Background quad texture coordinates for each display rotation, and the one in use. The
+    // buffers are built once connected, since the coordinates come from the Tango support
+    // library, and again after the OpenGL context is lost.
+    private final int[] mBackgroundUvBuffers = new int[4];
+    private boolean mBackgroundUvBuffersCreated;
+    private int mBackgroundUvRotation = -1;
 
     private ObjectColorPicker mOnePicker;
 
@@ -72,6 +144,98 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
 
     public Object3D earth;
 
+    // Route and POI marker icons, loaded in the background and attached once ready.
+    private MarkerTextureAtlas mMarkerAtlas;
+    private boolean mMarkerAtlasAttached;
+    private final ExecutorService mTextureLoader = Executors.newSingleThreadExecutor();
+
+    // Depth of the real geometry, fed from the Tango point cloud callback.
+    private final OcclusionMap mOcclusionMap =
+            new OcclusionMap(OCCLUSION_MAP_WIDTH, OCCLUSION_MAP_HEIGHT);
+    // Waypoint spheres, pooled: spheres are repositioned, and only created when more are shown
+    // than ever before.
+    private final WaypointMarkerPool<Object3D> mWaypointMarkers =
+            new WaypointMarkerPool<Object3D>() {
+                @Override
+                protected Object3D createMarker() {
+                    Object3D marker = new Sphere(WAYPOINT_MARKER_RADIUS, 20, 20);
+                    marker.setMaterial(earthMaterial);
+                    mMarkerAtlas.remapTextureCoords(marker, R.drawable.blue);
+                    return marker;
+                }
+
+                @Override
+                protected void addMarker(Object3D marker) {
+                    getCurrentScene().addChild(marker);
+                    mOnePicker.registerObject(marker);
+                }
+
+                @Override
+                protected void removeMarker(Object3D marker) {
+                    getCurrentScene().removeChild(marker);
+                    mOnePicker.unregisterObject(marker);
+                }
+            };
+    private int mViewportWidth;
+    private int mViewportHeight;
+    private final Quaternion mCameraRotation = new Quaternion();
+    // Smooths the camera pose and follows the route with it every frame, placing the waypoint
+    // markers and drawing the planned route through this renderer.
+    private final RouteNavigator mNavigator = new RouteNavigator(new RouteNavigator.Scene() {
+        @Override
+        public void placeWaypointMarker(int index, float x, float y, float z) {
+            placeWaypointMarkerGlThread(index, x, y, z);
+        }
+
+        @Override
+        public void trimWaypointMarkers(int count) {
+            trimWaypointMarkersGlThread(count);
+        }
+
+        @Override
+        public void drawRoute(float[] pointsXZ, int count, float height) {
+            boolean complete = mRouteGuidance.setRoute(mPlannedRoute, pointsXZ, count,
+                    ROUTE_MARKER_STRIDE, height);
+            // The route is redrawn as it is followed, only log when it stops fitting.
+            if (!complete && mPlannedRouteComplete) {
+                Log.w(TAG, "Too many route markers, drawing the planned route partially");
+            }
+            mPlannedRouteComplete = complete;
+        }
+
+        @Override
+        public void planRoute(float fromX, float fromZ, float toX, float toZ) {
+            AugmentedRealityRenderer.this.planRoute(fromX, fromZ, toX, toZ);
+        }
+    });
+
+    // Distance-to-destination fields are computed in the background, then handed to the
+    // navigator.
+    private final ExecutorService mRoutePlanner = Executors.newSingleThreadExecutor();
+    private final ExecutorService mRouteTilePool =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // Imported route waiting to be drawn in the OpenGL thread.
+    private volatile WaypointStore mPendingImportedRoute;
+    // Destination x, z set from another thread, waiting to be routed to in the OpenGL thread.
+    private volatile float[] mPendingDestination;
+    // All route markers are drawn as one mesh, animated on the GPU. The planned route and the
+    // extra routes each own a range of it.
+    private RouteGuidanceMesh mRouteGuidance;
+    private int mPlannedRoute = RouteGuidanceMesh.NO_ROUTE;
+    private boolean mPlannedRouteComplete = true;
+    // Extra routes by id, only touched in the OpenGL thread. Other threads queue their changes.
+    private final SparseArray<ExtraRoute> mExtraRoutes = new SparseArray<ExtraRoute>();
+    private final ConcurrentLinkedQueue<RouteChange> mRouteChanges =
+            new ConcurrentLinkedQueue<RouteChange>();
+    private final AtomicInteger mNextRouteId = new AtomicInteger();
+    private final float[] mExtraRoutePoints = new float[2 * RouteNavigator.MAX_ROUTE_POINTS];
+    // Moves of the start of service frame from drift correction and relocalization. The
+    // destination and the extra routes are anchored to the corrected frame and follow them.
+    private final DriftCorrection mDriftCorrection = new DriftCorrection();
+    private final AnchoredWaypoints mDestinationAnchor = new AnchoredWaypoints();
+    private RouteGuidanceMaterial mRouteGuidanceMaterial;
+    private double mRouteAnimationTime;
+
     public AugmentedRealityRenderer(Context context) {
         super(context);
     }
@@ -82,6 +246,9 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
 
     @Override
     protected void initScene() {
+        mOcclusionMap.resetGlThread();
+        mWaypointMarkers.clear();
+
         mOnePicker = new ObjectColorPicker(this);
         mOnePicker.setOnObjectPickedListener(this);
 
@@ -113,21 +280,38 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
         light.setPosition(3, 2, 4);
         getCurrentScene().addLight(light);
 
+        // Markers are drawn with a plain color until the icon atlas has been loaded.
         earthMaterial = new Material();
-        try {
-            Texture t = new Texture("earth", R.drawable.blue);
-            earthMaterial.addTexture(t);
-        } catch (ATexture.TextureException e) {
-            Log.e(TAG, "Exception generating earth texture", e);
+        earthMaterial.setColor(0xff3380ff);
+        earthMaterial.setColorInfluence(1);
+        mMarkerAtlasAttached = false;
+        if (mMarkerAtlas == null) {
+            mMarkerAtlas = new MarkerTextureAtlas(getContext(), new int[]{R.drawable.blue},
+                    MARKER_ICON_SIZE);
+            mMarkerAtlas.loadAsync(mTextureLoader);
         }
-        earthMaterial.setColorInfluence(0);
         earthMaterial.enableLighting(true);
         earthMaterial.setDiffuseMethod(new DiffuseMethod.Lambert());
 
         source = new float[]{0, 0};
         destination = new float[]{-5, -10};
-        current = source;
-
+        current = new float[]{source[0], source[1]};
+        mDestinationAnchor.set(destination[0], 0, destination[1], mDriftCorrection);
+        mNavigator.reset(destination, current);
+
+        mRouteGuidanceMaterial = new RouteGuidanceMaterial();
+        mRouteGuidance = new RouteGuidanceMesh(
+                RouteNavigator.MAX_ROUTE_POINTS / ROUTE_MARKER_STRIDE,
+                MAX_ROUTES);
+        mRouteGuidance.setMaterial(mRouteGuidanceMaterial);
+        getCurrentScene().addChild(mRouteGuidance);
+        mPlannedRoute = addRouteSlotGlThread(PLANNED_ROUTE_COLOR);
+        for (int i = 0; i < mExtraRoutes.size(); i++) {
+            ExtraRoute route = mExtraRoutes.valueAt(i);
+            route.slot = RouteGuidanceMesh.NO_ROUTE;
+            drawExtraRouteGlThread(route);
+        }
+        planRoute(source[0], source[1], destination[0], destination[1]);
 
 
         // Create sphere with earth texture and place it in space 3m forward from the origin.
@@ -136,42 +320,180 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
         mOnePicker.registerObject(mBackgroundQuad);
     }
 
+    /**
+     * Builds one GPU texture coordinate buffer for the background quad per display rotation, so
+     * that a rotation change only has to bind another buffer.
+     * This must be run in the OpenGL thread, after TangoSupport has been initialized.
+     */
+    private void createBackgroundUvBuffersGlThread() {
+        GLES20.glGenBuffers(mBackgroundUvBuffers.length, mBackgroundUvBuffers, 0);
+        for (int rotation = 0; rotation < mBackgroundUvBuffers.length; rotation++) {
+            float[] uvs =
+                    TangoSupport.getVideoOverlayUVBasedOnDisplayRotation(textureCoords0, rotation);
+            FloatBuffer buffer = ByteBuffer.allocateDirect(4 * uvs.length)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            buffer.put(uvs).position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBackgroundUvBuffers[rotation]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, 4 * uvs.length, buffer,
+                    GLES20.GL_STATIC_DRAW);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mBackgroundUvBuffersCreated = true;
+        mBackgroundUvRotation = -1;
+    }
+
     /**
      * Update background texture's UV coordinates when device orientation is changed (i.e., change
-     * between landscape and portrait mode).
-     * This must be run in the OpenGL thread.
+     * between landscape and portrait mode). The coordinates of every rotation are already on the
+     * GPU, so this only points the quad at another buffer. It is cheap enough to be called every
+     * frame.
+     * This must be run in the OpenGL thread, while connected to the Tango service.
      */
-    public void updateColorCameraTextureUvGlThread(int rotation, TangoPoseData c_pose) {
-        if (mBackgroundQuad == null) {
-            mBackgroundQuad = new ScreenQuad();
+    public void updateColorCameraTextureUvGlThread(int rotation) {
+        if (mBackgroundQuad == null || rotation == mBackgroundUvRotation
+                || rotation < 0 || rotation >= mBackgroundUvBuffers.length) {
+            return;
         }
+        if (!mBackgroundUvBuffersCreated) {
+            createBackgroundUvBuffersGlThread();
+        }
+        mBackgroundQuad.getGeometry().getTexCoordBufferInfo().bufferHandle =
+                mBackgroundUvBuffers[rotation];
+        mBackgroundUvRotation = rotation;
+    }
 
-        float[] textureCoords =
-                TangoSupport.getVideoOverlayUVBasedOnDisplayRotation(textureCoords0, rotation);
-        mBackgroundQuad.getGeometry().setTextureCoords(textureCoords, true);
-        mBackgroundQuad.getGeometry().reload();
+    /**
+     * Shows waypoint marker {@code index} at the given position.
+     * This must be run in the OpenGL thread.
+     */
+    private void placeWaypointMarkerGlThread(int index, float x, float y, float z) {
+        earth = mWaypointMarkers.place(index);
+        earth.setPosition(x, y, z);
+        earth.setVisible(true);
+    }
 
+    /**
+     * Drops the waypoint markers past the first {@code count} from the scene.
+     * This must be run in the OpenGL thread.
+     */
+    private void trimWaypointMarkersGlThread(int count) {
+        mWaypointMarkers.trim(count);
+    }
 
-        int number = 20;
-        float dx = (destination[0]-source[0])/number;
-        float dz = (destination[0]-source[0])/number;
+    /**
+     * Sets the floor plan of a multi-floor route and the floor of its destination, from any
+     * thread. The plan must have been built. Pass null to go back to a single floor route.
+     */
+    public void setFloorPlan(FloorPlan floorPlan, int destinationFloor) {
+        mNavigator.setFloorPlan(floorPlan, destinationFloor);
+    }
 
-        for(float i=source[0], j=source[1]; i > destination[0]; i+=dx, j+=dz) {
+    /**
+     * Swaps the plain marker color for the icon atlas as soon as it has finished loading.
+     * This must be run in the OpenGL thread.
+     */
+    private void attachMarkerAtlasGlThread() {
+        if (mMarkerAtlasAttached || mMarkerAtlas == null || earthMaterial == null) {
+            return;
+        }
+        ATexture texture = mMarkerAtlas.getTextureGlThread();
+        if (texture == null) {
+            return;
+        }
+        try {
+            earthMaterial.addTexture(texture);
+            earthMaterial.setColorInfluence(0);
+        } catch (ATexture.TextureException e) {
+            Log.e(TAG, "Exception attaching marker texture atlas", e);
+        }
+        mMarkerAtlasAttached = true;
+    }
 
-            if((i-current[0])*(i-current[0])+(j-current[1])*(j-current[1]) > 100)continue;
+    /**
+     * Takes the latest depth map for the route guidance shader, and hides the waypoint marker
+     * clusters that are entirely behind real geometry so they are not submitted at all.
+     * This must be run in the OpenGL thread.
+     */
+    private void updateOcclusionGlThread() {
+        mOcclusionMap.latchGlThread();
+        if (mRouteGuidanceMaterial != null) {
+            mRouteGuidanceMaterial.setOcclusion(mOcclusionMap.getTextureIdGlThread(),
+                    mViewportWidth, mViewportHeight);
+        }
 
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(i+" "+j+" colorcameratextureuvglthread");
-            Log.i(TAG, stringBuilder.toString());
+        for (int first = 0; first < mWaypointMarkers.size(); first += WAYPOINT_CLUSTER_SIZE) {
+            int last = Math.min(first + WAYPOINT_CLUSTER_SIZE, mWaypointMarkers.size());
+            float x = 0;
+            float y = 0;
+            float z = 0;
+            for (int i = first; i < last; i++) {
+                Object3D marker = mWaypointMarkers.get(i);
+                x += marker.getX();
+                y += marker.getY();
+                z += marker.getZ();
+            }
+            x /= last - first;
+            y /= last - first;
+            z /= last - first;
+            float radius = 0;
+            for (int i = first; i < last; i++) {
+                Object3D marker = mWaypointMarkers.get(i);
+                float dx = (float) marker.getX() - x;
+                float dy = (float) marker.getY() - y;
+                float dz = (float) marker.getZ() - z;
+                radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+            }
+            boolean visible = !mOcclusionMap.isOccluded(x, y, z,
+                    radius + WAYPOINT_MARKER_RADIUS);
+            for (int i = first; i < last; i++) {
+                mWaypointMarkers.get(i).setVisible(visible);
+            }
+        }
+    }
 
-            earth = new Sphere(0.05f, 20, 20);
-            earth.setMaterial(earthMaterial);
-            earth.setPosition(i, 0, j-0.5);
-            getCurrentScene().addChild(earth);
-            mOnePicker.registerObject(earth);
+    /**
+     * Returns the number of markers in the scene: route guidance arrows and waypoint spheres.
+     * This must be run in the OpenGL thread.
+     */
+    public int getMarkerCountGlThread() {
+        int count = mWaypointMarkers.size();
+        if (mRouteGuidance != null) {
+            count += mRouteGuidance.getTotalMarkerCount();
         }
+        return count;
+    }
 
+    /**
+     * Filter applied to the render camera pose, to select and tune from any thread.
+     */
+    public PoseSmoother getPoseSmoother() {
+        return mNavigator.getPoseSmoother();
+    }
 
+    /**
+     * Depth map of the real geometry, to be fed with point clouds from the Tango callback thread.
+     */
+    public OcclusionMap getOcclusionMap() {
+        return mOcclusionMap;
+    }
+
+    /**
+     * Advances the route guidance animation, which is a single shader uniform whatever the
+     * number of markers.
+     */
+    @Override
+    protected void onRender(long ellapsedRealtime, double deltaTime) {
+        attachMarkerAtlasGlThread();
+        applyImportedRouteGlThread();
+        applyRouteChangesGlThread();
+        applyPendingDestinationGlThread();
+        applyDriftCorrectionGlThread();
+        updateOcclusionGlThread();
+        mRouteAnimationTime += deltaTime;
+        if (mRouteGuidanceMaterial != null) {
+            mRouteGuidanceMaterial.setTime((float) mRouteAnimationTime);
+        }
+        super.onRender(ellapsedRealtime, deltaTime);
     }
 
     /**
@@ -180,26 +502,285 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
      * RGB frame, which can be retrieved with this.getTimestamp();
      * <p/>
      * NOTE: This must be called from the OpenGL render thread; it is not thread-safe.
+     *
+     * @param translation x, y, z of the color camera, OpenGL engine convention.
+     * @param rotation    x, y, z, w quaternion of the color camera, OpenGL engine convention.
      */
-    public void updateRenderCameraPose(TangoPoseData cameraPose) {
-        float[] rotation = cameraPose.getRotationAsFloats();
-        float[] translation = cameraPose.getTranslationAsFloats();
-        Quaternion quaternion = new Quaternion(rotation[3], rotation[0], rotation[1], rotation[2]);
+    public void updateRenderCameraPose(double timestamp, double[] translation,
+                                       double[] rotation) {
+        // This runs every frame, so it reads the pose arrays directly and reuses its quaternion
+        // rather than allocating.
+        // Only the rendered camera is smoothed; routing follows the raw pose without lag.
+        mNavigator.update(timestamp, translation, rotation);
+        double[] smoothed = mNavigator.getSmoothedRotation();
+        mCameraRotation.setAll(smoothed[3], smoothed[0], smoothed[1], smoothed[2]);
         // Conjugating the Quaternion is needed because Rajawali uses left-handed convention for
         // quaternions.
-        getCurrentCamera().setRotation(quaternion.conjugate());
-        getCurrentCamera().setPosition(translation[0], translation[1], translation[2]);
+        getCurrentCamera().setRotation(mCameraRotation.conjugate());
+        smoothed = mNavigator.getSmoothedTranslation();
+        getCurrentCamera().setPosition(smoothed[0], smoothed[1], smoothed[2]);
+    }
 
-        if(cameraPose != null) {
-            current[0] = cameraPose.getTranslationAsFloats()[0];
-            current[1] = cameraPose.getTranslationAsFloats()[1];
+    /**
+     * Computes the distance-to-destination field between the given floor positions on a
+     * background thread. The route is redrawn from it as soon as it's ready.
+     * A destination further than {@link #MAX_ROUTE_DISTANCE} is routed towards in a straight
+     * line, up to that distance.
+     */
+    public void planRoute(float fromX, float fromZ, float toX, float toZ) {
+        float dx = toX - fromX;
+        float dz = toZ - fromZ;
+        float distance = (float) Math.hypot(dx, dz);
+        if (Float.isNaN(distance) || Float.isInfinite(distance)) {
+            Log.w(TAG, "Invalid route from " + fromX + ", " + fromZ + " to " + toX + ", " + toZ);
+            return;
+        }
+        if (distance > MAX_ROUTE_DISTANCE) {
+            Log.w(TAG, "Destination " + distance + " m away, routing towards it up to "
+                    + MAX_ROUTE_DISTANCE + " m");
+            toX = fromX + dx * MAX_ROUTE_DISTANCE / distance;
+            toZ = fromZ + dz * MAX_ROUTE_DISTANCE / distance;
+        }
+        final float goalX = toX;
+        final float goalZ = toZ;
+        float minX = Math.min(fromX, goalX) - ROUTE_GRID_MARGIN;
+        float minZ = Math.min(fromZ, goalZ) - ROUTE_GRID_MARGIN;
+        int columns = Math.min(MAX_ROUTE_GRID_CELLS, (int) Math.ceil(
+                (Math.abs(goalX - fromX) + 2 * ROUTE_GRID_MARGIN) / ROUTE_CELL_SIZE));
+        int rows = Math.min(MAX_ROUTE_GRID_CELLS, (int) Math.ceil(
+                (Math.abs(goalZ - fromZ) + 2 * ROUTE_GRID_MARGIN) / ROUTE_CELL_SIZE));
+        final DistanceField field = new DistanceField(minX, minZ, ROUTE_CELL_SIZE, columns, rows);
+        mRoutePlanner.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    field.compute(new float[]{goalX, goalZ}, 1, mRouteTilePool);
+                    mNavigator.setRouteField(field);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Route planning interrupted", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the route planning and texture loading threads. The renderer can't plan routes or
+     * load textures afterwards.
+     */
+    public void shutdown() {
+        mRoutePlanner.shutdownNow();
+        mRouteTilePool.shutdownNow();
+        mTextureLoader.shutdownNow();
+        mNavigator.setRouteField(null);
+    }
+
+    /**
+     * Draws another route next to the planned one, from any thread, for instance an evacuation
+     * route. Routes are drawn from the same mesh, so adding one only writes its own markers.
+     *
+     * @param waypoints route to draw; it is copied.
+     * @param color     ARGB color of the route markers.
+     * @return the id of the route, for {@link #removeRoute} and {@link #setRouteVisible}.
+     */
+    public int addRoute(WaypointStore waypoints, int color) {
+        WaypointStore copy = new WaypointStore();
+        copy.copyFrom(waypoints);
+        int id = mNextRouteId.getAndIncrement();
+        mRouteChanges.add(new RouteChange(ROUTE_ADD, id, copy, color));
+        return id;
+    }
+
+    /**
+     * Stops drawing a route added with {@link #addRoute}, from any thread.
+     */
+    public void removeRoute(int id) {
+        mRouteChanges.add(new RouteChange(ROUTE_REMOVE, id, null, 0));
+    }
 
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(current[0]+" "+current[1]+" updatecolorcamera");
-            Log.i(TAG, stringBuilder.toString());
+    /**
+     * Shows or hides a route added with {@link #addRoute}, from any thread. Switching between
+     * routes is done by hiding one and showing the other; their markers are kept.
+     */
+    public void setRouteVisible(int id, boolean visible) {
+        mRouteChanges.add(new RouteChange(visible ? ROUTE_SHOW : ROUTE_HIDE, id, null, 0));
+    }
 
+    /**
+     * Applies the changes queued by {@link #addRoute}, {@link #removeRoute} and
+     * {@link #setRouteVisible}. Each one only updates the range of the route mesh of that route.
+     * This must be run in the OpenGL thread.
+     */
+    private void applyRouteChangesGlThread() {
+        if (mRouteGuidance == null) {
+            return;
         }
+        RouteChange change;
+        while ((change = mRouteChanges.poll()) != null) {
+            if (change.type == ROUTE_ADD) {
+                ExtraRoute route = new ExtraRoute(change.color);
+                route.waypoints.set(change.waypoints, mDriftCorrection);
+                mExtraRoutes.put(change.id, route);
+                drawExtraRouteGlThread(route);
+                continue;
+            }
+            ExtraRoute route = mExtraRoutes.get(change.id);
+            if (route == null) {
+                continue;
+            }
+            if (change.type == ROUTE_REMOVE) {
+                if (route.slot != RouteGuidanceMesh.NO_ROUTE) {
+                    mRouteGuidance.removeRoute(route.slot);
+                }
+                mExtraRoutes.remove(change.id);
+            } else {
+                route.visible = change.type == ROUTE_SHOW;
+                if (route.slot != RouteGuidanceMesh.NO_ROUTE) {
+                    mRouteGuidance.setRouteVisible(route.slot, route.visible);
+                }
+            }
+        }
+    }
 
+    /**
+     * Writes an extra route into its range of the route mesh, taking a slot if it has none.
+     * This must be run in the OpenGL thread.
+     */
+    private void drawExtraRouteGlThread(ExtraRoute route) {
+        if (route.slot == RouteGuidanceMesh.NO_ROUTE) {
+            route.slot = addRouteSlotGlThread(route.color);
+            if (route.slot == RouteGuidanceMesh.NO_ROUTE) {
+                Log.w(TAG, "Too many routes, not drawing this one");
+                return;
+            }
+        }
+        int count = Math.min(route.waypoints.size(), RouteNavigator.MAX_ROUTE_POINTS);
+        for (int i = 0; i < count; i++) {
+            mExtraRoutePoints[2 * i] = route.waypoints.getX(i);
+            mExtraRoutePoints[2 * i + 1] = route.waypoints.getZ(i);
+        }
+        if (!mRouteGuidance.setRoute(route.slot, mExtraRoutePoints, count, ROUTE_MARKER_STRIDE,
+                mNavigator.getRouteHeight())) {
+            Log.w(TAG, "Too many route markers, drawing this route partially");
+        }
+        mRouteGuidance.setRouteVisible(route.slot, route.visible);
+    }
+
+    /**
+     * Reserves a slot of the route mesh for a route of the given ARGB color.
+     * This must be run in the OpenGL thread.
+     */
+    private int addRouteSlotGlThread(int color) {
+        return mRouteGuidance.addRoute(Color.red(color) / 255f, Color.green(color) / 255f,
+                Color.blue(color) / 255f, Color.alpha(color) / 255f);
+    }
+
+    /**
+     * Copies the drawn route into {@code out}. Can be called from any thread.
+     */
+    public void copyRoute(WaypointStore out) {
+        mNavigator.copyRoute(out);
+    }
+
+    /**
+     * Replaces the drawn route with an imported one, from any thread. The route is drawn as is
+     * and the destination moves to its last waypoint, so that re-routing only kicks in once the
+     * user walks away from it.
+     */
+    public void setImportedRoute(WaypointStore waypoints) {
+        mPendingImportedRoute = waypoints;
+    }
+
+    /**
+     * Changes the route destination to the given floor position, from any thread. The route is
+     * re-planned in the background from the current position.
+     */
+    public void setDestination(float x, float z) {
+        mPendingDestination = new float[]{x, z};
+    }
+
+    /**
+     * Re-plans the route to a destination set with {@link #setDestination}, if any.
+     * This must be run in the OpenGL thread.
+     */
+    private void applyPendingDestinationGlThread() {
+        float[] pending = mPendingDestination;
+        if (pending == null || destination == null) {
+            return;
+        }
+        mPendingDestination = null;
+        destination[0] = pending[0];
+        destination[1] = pending[1];
+        mDestinationAnchor.set(destination[0], 0, destination[1], mDriftCorrection);
+        mNavigator.releaseDrawnRoute();
+        mNavigator.replan();
+        Log.d(TAG, "New destination: " + destination[0] + ", " + destination[1]);
+    }
+
+    /**
+     * Draws a route handed over with {@link #setImportedRoute}, if any.
+     * This must be run in the OpenGL thread.
+     */
+    private void applyImportedRouteGlThread() {
+        WaypointStore waypoints = mPendingImportedRoute;
+        if (waypoints == null || mRouteGuidance == null) {
+            return;
+        }
+        mPendingImportedRoute = null;
+        if (waypoints.size() == 0) {
+            return;
+        }
+        mNavigator.drawImportedRoute(waypoints);
+
+        int last = mNavigator.getRoutePointCount() - 1;
+        destination[0] = mNavigator.getRouteX(last);
+        destination[1] = mNavigator.getRouteZ(last);
+        mDestinationAnchor.set(destination[0], 0, destination[1], mDriftCorrection);
+        planRoute(mNavigator.getRouteX(0), mNavigator.getRouteZ(0), destination[0],
+                destination[1]);
+    }
+
+    /**
+     * Transform between the start of service frame and the drift corrected frame, to be fed from
+     * the Tango pose callback thread.
+     */
+    public DriftCorrection getDriftCorrection() {
+        return mDriftCorrection;
+    }
+
+    /**
+     * Re-solves the anchored destination and extra routes after the start of service frame was
+     * corrected, within a fixed per frame budget so a large correction is spread over a few
+     * frames. Each route is redrawn once all its waypoints are solved, and the route is re-planned
+     * if the destination moved.
+     * This must be run in the OpenGL thread.
+     */
+    private void applyDriftCorrectionGlThread() {
+        mDriftCorrection.latchGlThread();
+        int budget = MAX_ANCHOR_SOLVES_PER_FRAME;
+        if (!mDestinationAnchor.isSolved(mDriftCorrection)) {
+            budget -= mDestinationAnchor.solve(mDriftCorrection, budget);
+            if (mDestinationAnchor.isSolved(mDriftCorrection) && destination != null) {
+                float dx = mDestinationAnchor.getX(0) - destination[0];
+                float dz = mDestinationAnchor.getZ(0) - destination[1];
+                if (dx * dx + dz * dz > ROUTE_CELL_SIZE * ROUTE_CELL_SIZE) {
+                    destination[0] = mDestinationAnchor.getX(0);
+                    destination[1] = mDestinationAnchor.getZ(0);
+                    mNavigator.releaseDrawnRoute();
+                    mNavigator.replan();
+                }
+            }
+        }
+        for (int i = 0; i < mExtraRoutes.size() && budget > 0; i++) {
+            ExtraRoute route = mExtraRoutes.valueAt(i);
+            if (route.waypoints.isSolved(mDriftCorrection)) {
+                continue;
+            }
+            budget -= route.waypoints.solve(mDriftCorrection, budget);
+            if (route.waypoints.isSolved(mDriftCorrection)
+                    && route.slot != RouteGuidanceMesh.NO_ROUTE) {
+                drawExtraRouteGlThread(route);
+            }
+        }
     }
 
     /**
@@ -211,6 +792,17 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
         return mTangoCameraTexture == null ? -1 : mTangoCameraTexture.getTextureId();
     }
 
+    /**
+     * The background texture coordinate buffers die with the OpenGL context, and Rajawali
+     * restores the quad's own buffer, so they are rebuilt and bound again on the next update.
+     */
+    @Override
+    public void onRenderSurfaceCreated(EGLConfig config, GL10 gl, int width, int height) {
+        mBackgroundUvBuffersCreated = false;
+        mBackgroundUvRotation = -1;
+        super.onRenderSurfaceCreated(config, gl, width, height);
+    }
+
     /**
      * We need to override this method to mark the camera for re-configuration (set proper
      * projection matrix) since it will be reset by Rajawali on surface changes.
@@ -219,6 +811,8 @@ public class AugmentedRealityRenderer extends Renderer implements OnObjectPicked
     public void onRenderSurfaceSizeChanged(GL10 gl, int width, int height) {
         super.onRenderSurfaceSizeChanged(gl, width, height);
         mSceneCameraConfigured = false;
+        mViewportWidth = width;
+        mViewportHeight = height;
     }
 
     public boolean isSceneCameraConfigured() {
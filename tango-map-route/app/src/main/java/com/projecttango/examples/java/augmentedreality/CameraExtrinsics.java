@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Fixed poses of the depth and color cameras on the device, queried once from the Tango service,
+ * so that camera poses can be composed in-process from a device pose in the {@link PoseHistory}
+ * instead of being asked through JNI for every frame and point cloud.
+ * <p/>
+ * The extrinsics are the device to camera poses as returned by {@code TangoSupport.getPoseAtTime}
+ * with the Tango engine for the device frame; the depth camera in the Tango engine convention and
+ * the color camera in the OpenGL engine convention for a display rotation. The composed poses
+ * match the ones {@code TangoSupport.getPoseAtTime} returns for the same targets with the OpenGL
+ * engine for the start of service frame.
+ * <p/>
+ * Instances are immutable, so they can be shared between threads; the methods don't allocate.
+ */
+public class CameraExtrinsics {
+    private static final double HALF_SQRT2 = Math.sqrt(0.5);
+
+    private final double[] mDepthTranslation = new double[3];
+    private final double[] mDepthRotation = new double[4];
+    private final double[] mColorTranslation = new double[3];
+    private final double[] mColorRotation = new double[4];
+    private final int mDisplayRotation;
+
+    /**
+     * @param displayRotation display rotation the color camera pose was queried for.
+     */
+    public CameraExtrinsics(double[] depthTranslation, double[] depthRotation,
+                            double[] colorTranslation, double[] colorRotation,
+                            int displayRotation) {
+        System.arraycopy(depthTranslation, 0, mDepthTranslation, 0, 3);
+        System.arraycopy(depthRotation, 0, mDepthRotation, 0, 4);
+        System.arraycopy(colorTranslation, 0, mColorTranslation, 0, 3);
+        System.arraycopy(colorRotation, 0, mColorRotation, 0, 4);
+        mDisplayRotation = displayRotation;
+    }
+
+    public int getDisplayRotation() {
+        return mDisplayRotation;
+    }
+
+    /**
+     * Computes the depth camera pose from a device pose in the Tango start of service frame.
+     * The output arrays may be the input ones.
+     */
+    public void getDepthPose(double[] deviceTranslation, double[] deviceRotation,
+                             double[] outTranslation, double[] outRotation) {
+        compose(deviceTranslation, deviceRotation, mDepthTranslation, mDepthRotation,
+                outTranslation, outRotation);
+    }
+
+    /**
+     * Computes the color camera pose for the display rotation from a device pose in the Tango
+     * start of service frame. The output arrays may be the input ones.
+     */
+    public void getColorPose(double[] deviceTranslation, double[] deviceRotation,
+                             double[] outTranslation, double[] outRotation) {
+        compose(deviceTranslation, deviceRotation, mColorTranslation, mColorRotation,
+                outTranslation, outRotation);
+    }
+
+    /**
+     * Chains the device pose with a camera extrinsic pose, then moves the result from the Tango
+     * start of service frame to the OpenGL one: (x, y, z) -> (x, z, -y).
+     */
+    private static void compose(double[] t1, double[] q1, double[] t2, double[] q2,
+                                double[] outTranslation, double[] outRotation) {
+        double x1 = q1[0], y1 = q1[1], z1 = q1[2], w1 = q1[3];
+        double x2 = q2[0], y2 = q2[1], z2 = q2[2], w2 = q2[3];
+
+        // t = t1 + q1 * t2, rotating with v + 2w (u x v) + 2u x (u x v).
+        double vx = t2[0], vy = t2[1], vz = t2[2];
+        double cx = y1 * vz - z1 * vy;
+        double cy = z1 * vx - x1 * vz;
+        double cz = x1 * vy - y1 * vx;
+        double tx = t1[0] + vx + 2 * (w1 * cx + y1 * cz - z1 * cy);
+        double ty = t1[1] + vy + 2 * (w1 * cy + z1 * cx - x1 * cz);
+        double tz = t1[2] + vz + 2 * (w1 * cz + x1 * cy - y1 * cx);
+
+        // q = q1 * q2.
+        double qx = w1 * x2 + x1 * w2 + y1 * z2 - z1 * y2;
+        double qy = w1 * y2 - x1 * z2 + y1 * w2 + z1 * x2;
+        double qz = w1 * z2 + x1 * y2 - y1 * x2 + z1 * w2;
+        double qw = w1 * w2 - x1 * x2 - y1 * y2 - z1 * z2;
+
+        // Tango to OpenGL start of service frame, a rotation of -90 degrees about x.
+        outTranslation[0] = tx;
+        outTranslation[1] = tz;
+        outTranslation[2] = -ty;
+        outRotation[0] = HALF_SQRT2 * (qx - qw);
+        outRotation[1] = HALF_SQRT2 * (qy + qz);
+        outRotation[2] = HALF_SQRT2 * (qz - qy);
+        outRotation[3] = HALF_SQRT2 * (qw + qx);
+    }
+}
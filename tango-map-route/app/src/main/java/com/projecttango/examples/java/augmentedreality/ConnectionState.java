@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.Tango;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free state machine for the Tango service connection, shared by the UI thread, the Tango
+ * ready thread and the OpenGL thread.
+ * The state is an immutable {@link Snapshot} swapped atomically, so the OpenGL thread can read it
+ * every frame without locking. Only disconnection waits, for at most the frame in flight, so that
+ * the service is never torn down while a frame is using it.
+ */
+class ConnectionState {
+    static final int DISCONNECTED = 0;
+    static final int CONNECTING = 1;
+    static final int CONNECTED = 2;
+
+    static final int INVALID_TEXTURE_ID = 0;
+
+    /**
+     * Immutable view of the connection at a point in time.
+     */
+    static final class Snapshot {
+        final int state;
+        final Tango tango;
+        // Camera texture the service is connected to; only the OpenGL thread publishes snapshots
+        // with a new value, through textureConnected().
+        final int connectedTextureId;
+
+        Snapshot(int state, Tango tango, int connectedTextureId) {
+            this.state = state;
+            this.tango = tango;
+            this.connectedTextureId = connectedTextureId;
+        }
+
+        boolean isConnected() {
+            return state == CONNECTED;
+        }
+    }
+
+    private static final Snapshot DISCONNECTED_SNAPSHOT =
+            new Snapshot(DISCONNECTED, null, INVALID_TEXTURE_ID);
+
+    private final AtomicReference<Snapshot> mSnapshot =
+            new AtomicReference<Snapshot>(DISCONNECTED_SNAPSHOT);
+    private final AtomicInteger mFramesInFlight = new AtomicInteger();
+    // Number of disconnect() calls waiting on mFramesDone, so frames only take its lock while
+    // someone waits.
+    private final AtomicInteger mDisconnectWaiters = new AtomicInteger();
+    private final Object mFramesDone = new Object();
+
+    /**
+     * Returns the current state. Never blocks.
+     */
+    Snapshot get() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Starts a new connection with the given service object. Any previous one is replaced.
+     */
+    void connecting(Tango tango) {
+        mSnapshot.set(new Snapshot(CONNECTING, tango, INVALID_TEXTURE_ID));
+    }
+
+    /**
+     * Marks the connection of {@code tango} as established.
+     *
+     * @return false if the connection has been abandoned in the meantime (e.g. the activity was
+     * stopped before Tango was ready).
+     */
+    boolean connected(Tango tango) {
+        Snapshot current = mSnapshot.get();
+        if (current.state != CONNECTING || current.tango != tango) {
+            return false;
+        }
+        return mSnapshot.compareAndSet(current,
+                new Snapshot(CONNECTED, tango, INVALID_TEXTURE_ID));
+    }
+
+    /**
+     * Records the camera texture ID the service has been connected to, unless the connection
+     * changed since {@code expected} was read.
+     * This must be run in the OpenGL thread.
+     */
+    boolean textureConnected(Snapshot expected, int textureId) {
+        return mSnapshot.compareAndSet(expected,
+                new Snapshot(expected.state, expected.tango, textureId));
+    }
+
+    /**
+     * Moves to {@link #DISCONNECTED} and waits until no frame is using the previous connection.
+     *
+     * @return the service object to disconnect, or null if there was none.
+     */
+    Tango disconnect() {
+        Snapshot previous = mSnapshot.getAndSet(DISCONNECTED_SNAPSHOT);
+        boolean interrupted = false;
+        mDisconnectWaiters.incrementAndGet();
+        synchronized (mFramesDone) {
+            while (mFramesInFlight.get() > 0) {
+                try {
+                    mFramesDone.wait();
+                } catch (InterruptedException e) {
+                    // The frame still has to finish before the service goes away.
+                    interrupted = true;
+                }
+            }
+        }
+        mDisconnectWaiters.decrementAndGet();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return previous.tango;
+    }
+
+    /**
+     * Marks the start of a frame that uses the service. Returns the snapshot to use for the whole
+     * frame, or null if not connected, in which case {@link #endFrame()} must not be called.
+     * This must be run in the OpenGL thread.
+     */
+    Snapshot beginFrame() {
+        mFramesInFlight.incrementAndGet();
+        Snapshot snapshot = mSnapshot.get();
+        if (!snapshot.isConnected()) {
+            endFrame();
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Marks the end of a frame started with a non null {@link #beginFrame()}.
+     * This must be run in the OpenGL thread.
+     */
+    void endFrame() {
+        if (mFramesInFlight.decrementAndGet() == 0 && mDisconnectWaiters.get() > 0) {
+            synchronized (mFramesDone) {
+                mFramesDone.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Distance-to-destination field over a walkable grid laid on the XZ (floor) plane of the
+ * OpenGL start of service frame.
+ * The field is computed once with a multi-source Dijkstra, split in square tiles which are
+ * relaxed in parallel, and also stores for every cell the neighbour to step to next. Once it
+ * has been computed the corrected walking direction from any position is a single array lookup
+ * and a full route back to the destination can be rebuilt by following the chain of cells.
+ * <p/>
+ * NOTE: {@link #compute} is meant to be called from a background thread. Lookups are only valid
+ * after {@link #isReady()} returns true.
+ */
+public class DistanceField {
+    private static final int TILE_SIZE = 32;
+    private static final float UNREACHABLE = Float.POSITIVE_INFINITY;
+    private static final int NO_CELL = -1;
+
+    // Neighbour offsets, orthogonal first, then diagonals.
+    private static final int[] NEIGHBOUR_DX = {1, -1, 0, 0, 1, 1, -1, -1};
+    private static final int[] NEIGHBOUR_DZ = {0, 0, 1, -1, 1, -1, 1, -1};
+
+    private final float mOriginX;
+    private final float mOriginZ;
+    private final float mCellSize;
+    private final int mColumns;
+    private final int mRows;
+    private final int mTileColumns;
+    private final int mTileRows;
+    private final float[] mStepCost = new float[8];
+
+    private final boolean[] mBlocked;
+    private final float[] mDistance;
+    private final int[] mNextCell;
+
+    private volatile boolean mReady;
+
+    /**
+     * Creates a grid of {@code columns} x {@code rows} cells of {@code cellSize} meters, with
+     * its first cell at ({@code originX}, {@code originZ}). All cells start as walkable.
+     */
+    public DistanceField(float originX, float originZ, float cellSize, int columns, int rows) {
+        if (cellSize <= 0 || columns <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("Invalid distance field size");
+        }
+        mOriginX = originX;
+        mOriginZ = originZ;
+        mCellSize = cellSize;
+        mColumns = columns;
+        mRows = rows;
+        mTileColumns = (columns + TILE_SIZE - 1) / TILE_SIZE;
+        mTileRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+        for (int n = 0; n < 8; n++) {
+            mStepCost[n] = n < 4 ? cellSize : cellSize * (float) Math.sqrt(2);
+        }
+        mBlocked = new boolean[columns * rows];
+        mDistance = new float[columns * rows];
+        mNextCell = new int[columns * rows];
+    }
+
+    /**
+     * Marks the cell containing the given floor position as an obstacle (or clears it).
+     * Must be called before {@link #compute}.
+     */
+    public void setBlocked(float x, float z, boolean blocked) {
+        int cell = cellAt(x, z);
+        if (cell != NO_CELL) {
+            mBlocked[cell] = blocked;
+        }
+    }
+
+    /**
+     * Computes the distance field towards the given goals.
+     *
+     * @param goalsXZ   interleaved x, z floor positions of the goal cells.
+     * @param goalCount number of goals in {@code goalsXZ}.
+     * @param executor  executor the tiles are relaxed on, or null to run on the calling thread.
+     */
+    public void compute(float[] goalsXZ, int goalCount, ExecutorService executor)
+            throws InterruptedException {
+        mReady = false;
+        Arrays.fill(mDistance, UNREACHABLE);
+        Arrays.fill(mNextCell, NO_CELL);
+
+        boolean[] dirtyTiles = new boolean[mTileColumns * mTileRows];
+        for (int g = 0; g < goalCount; g++) {
+            int cell = cellAt(goalsXZ[2 * g], goalsXZ[2 * g + 1]);
+            if (cell != NO_CELL && !mBlocked[cell]) {
+                mDistance[cell] = 0;
+                dirtyTiles[tileOf(cell)] = true;
+            }
+        }
+
+        // Tiles are relaxed in four passes by the parity of their tile coordinates so that no two
+        // tiles running at the same time are adjacent, i.e. a tile only reads cells of its
+        // neighbours while they are not being written.
+        boolean anyDirty = true;
+        while (anyDirty) {
+            anyDirty = false;
+            for (int parity = 0; parity < 4; parity++) {
+                List<Integer> tiles = new ArrayList<Integer>();
+                for (int tz = parity / 2; tz < mTileRows; tz += 2) {
+                    for (int tx = parity % 2; tx < mTileColumns; tx += 2) {
+                        int tile = tz * mTileColumns + tx;
+                        if (dirtyTiles[tile]) {
+                            dirtyTiles[tile] = false;
+                            tiles.add(tile);
+                        }
+                    }
+                }
+                boolean[] changed = runTiles(tiles, executor, true);
+                for (int i = 0; i < changed.length; i++) {
+                    if (changed[i]) {
+                        markNeighbourTilesDirty(tiles.get(i), dirtyTiles);
+                        anyDirty = true;
+                    }
+                }
+            }
+        }
+
+        List<Integer> allTiles = new ArrayList<Integer>();
+        for (int tile = 0; tile < mTileColumns * mTileRows; tile++) {
+            allTiles.add(tile);
+        }
+        runTiles(allTiles, executor, false);
+        mReady = true;
+    }
+
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Returns true if the given floor position is within the grid.
+     */
+    public boolean contains(float x, float z) {
+        return cellAt(x, z) != NO_CELL;
+    }
+
+    /**
+     * Walking distance in meters from the given floor position to the nearest goal, or
+     * {@code Float.POSITIVE_INFINITY} when it is outside the grid or unreachable.
+     */
+    public float getDistance(float x, float z) {
+        int cell = cellAt(x, z);
+        return cell == NO_CELL ? UNREACHABLE : mDistance[cell];
+    }
+
+    /**
+     * Writes into {@code outDirection} the unit x, z direction to walk from the given floor
+     * position towards the nearest goal.
+     *
+     * @return false if there is no direction to follow (unreachable, outside the grid, or
+     * already at a goal).
+     */
+    public boolean getDirection(float x, float z, float[] outDirection) {
+        int cell = cellAt(x, z);
+        if (cell == NO_CELL || mNextCell[cell] == NO_CELL) {
+            return false;
+        }
+        int next = mNextCell[cell];
+        float dx = next % mColumns - cell % mColumns;
+        float dz = next / mColumns - cell / mColumns;
+        float length = (float) Math.sqrt(dx * dx + dz * dz);
+        outDirection[0] = dx / length;
+        outDirection[1] = dz / length;
+        return true;
+    }
+
+    /**
+     * Follows the field downhill from the given floor position and writes the centres of the
+     * visited cells into {@code outXZ} as interleaved x, z values.
+     *
+     * @return the number of points written, at most {@code maxPoints}.
+     */
+    public int tracePath(float x, float z, float[] outXZ, int maxPoints) {
+        int cell = cellAt(x, z);
+        if (cell == NO_CELL || mDistance[cell] == UNREACHABLE) {
+            return 0;
+        }
+        int count = 0;
+        while (cell != NO_CELL && count < maxPoints) {
+            outXZ[2 * count] = mOriginX + (cell % mColumns + 0.5f) * mCellSize;
+            outXZ[2 * count + 1] = mOriginZ + (cell / mColumns + 0.5f) * mCellSize;
+            count++;
+            cell = mNextCell[cell];
+        }
+        return count;
+    }
+
+    private int cellAt(float x, float z) {
+        int column = (int) Math.floor((x - mOriginX) / mCellSize);
+        int row = (int) Math.floor((z - mOriginZ) / mCellSize);
+        if (column < 0 || row < 0 || column >= mColumns || row >= mRows) {
+            return NO_CELL;
+        }
+        return row * mColumns + column;
+    }
+
+    private int tileOf(int cell) {
+        return (cell / mColumns / TILE_SIZE) * mTileColumns + (cell % mColumns) / TILE_SIZE;
+    }
+
+    private void markNeighbourTilesDirty(int tile, boolean[] dirtyTiles) {
+        int tx = tile % mTileColumns;
+        int tz = tile / mTileColumns;
+        for (int z = Math.max(0, tz - 1); z <= Math.min(mTileRows - 1, tz + 1); z++) {
+            for (int x = Math.max(0, tx - 1); x <= Math.min(mTileColumns - 1, tx + 1); x++) {
+                dirtyTiles[z * mTileColumns + x] = true;
+            }
+        }
+    }
+
+    /**
+     * Runs either the relaxation or the next-cell pass over the given tiles, in parallel on
+     * {@code executor} when there is one.
+     */
+    private boolean[] runTiles(List<Integer> tiles, ExecutorService executor,
+                               final boolean relax) throws InterruptedException {
+        boolean[] changed = new boolean[tiles.size()];
+        if (executor == null) {
+            for (int i = 0; i < tiles.size(); i++) {
+                changed[i] = relax ? relaxTile(tiles.get(i)) : linkTile(tiles.get(i));
+            }
+            return changed;
+        }
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(tiles.size());
+        for (final Integer tile : tiles) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return relax ? relaxTile(tile) : linkTile(tile);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                changed[i] = futures.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Distance field tile failed", e.getCause());
+        }
+        return changed;
+    }
+
+    /**
+     * Dijkstra restricted to one tile, seeded with the current distances of the tile and of the
+     * cells bordering it.
+     *
+     * @return true if any distance in the tile decreased.
+     */
+    private boolean relaxTile(int tile) {
+        int x0 = (tile % mTileColumns) * TILE_SIZE;
+        int z0 = (tile / mTileColumns) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, mColumns);
+        int z1 = Math.min(z0 + TILE_SIZE, mRows);
+        CellHeap heap = new CellHeap((x1 - x0) * (z1 - z0));
+        boolean changed = false;
+
+        for (int z = z0; z < z1; z++) {
+            for (int x = x0; x < x1; x++) {
+                int cell = z * mColumns + x;
+                if (mBlocked[cell]) {
+                    continue;
+                }
+                // Pull in distances from the neighbouring tiles.
+                if (x == x0 || z == z0 || x == x1 - 1 || z == z1 - 1) {
+                    for (int n = 0; n < 8; n++) {
+                        int nx = x + NEIGHBOUR_DX[n];
+                        int nz = z + NEIGHBOUR_DZ[n];
+                        if (nx >= x0 && nx < x1 && nz >= z0 && nz < z1) {
+                            continue;
+                        }
+                        if (canStep(x, z, n)) {
+                            float d = mDistance[nz * mColumns + nx] + mStepCost[n];
+                            if (d < mDistance[cell]) {
+                                mDistance[cell] = d;
+                                changed = true;
+                            }
+                        }
+                    }
+                }
+                if (mDistance[cell] != UNREACHABLE) {
+                    heap.push(cell, mDistance[cell]);
+                }
+            }
+        }
+
+        while (!heap.isEmpty()) {
+            float d = heap.peekKey();
+            int cell = heap.pop();
+            if (d > mDistance[cell]) {
+                continue;
+            }
+            int x = cell % mColumns;
+            int z = cell / mColumns;
+            for (int n = 0; n < 8; n++) {
+                int nx = x + NEIGHBOUR_DX[n];
+                int nz = z + NEIGHBOUR_DZ[n];
+                if (nx < x0 || nx >= x1 || nz < z0 || nz >= z1 || !canStep(x, z, n)) {
+                    continue;
+                }
+                int neighbour = nz * mColumns + nx;
+                float nd = d + mStepCost[n];
+                if (nd < mDistance[neighbour]) {
+                    mDistance[neighbour] = nd;
+                    heap.push(neighbour, nd);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Stores for every cell of the tile the neighbour with the lowest distance.
+     */
+    private boolean linkTile(int tile) {
+        int x0 = (tile % mTileColumns) * TILE_SIZE;
+        int z0 = (tile / mTileColumns) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, mColumns);
+        int z1 = Math.min(z0 + TILE_SIZE, mRows);
+        for (int z = z0; z < z1; z++) {
+            for (int x = x0; x < x1; x++) {
+                int cell = z * mColumns + x;
+                float best = mDistance[cell];
+                int next = NO_CELL;
+                for (int n = 0; n < 8; n++) {
+                    if (!canStep(x, z, n)) {
+                        continue;
+                    }
+                    int neighbour = (z + NEIGHBOUR_DZ[n]) * mColumns + x + NEIGHBOUR_DX[n];
+                    if (mDistance[neighbour] < best) {
+                        best = mDistance[neighbour];
+                        next = neighbour;
+                    }
+                }
+                mNextCell[cell] = next;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether it is possible to walk from cell (x, z) in the direction of neighbour {@code n}.
+     * Diagonal steps may not cut the corner of a blocked cell.
+     */
+    private boolean canStep(int x, int z, int n) {
+        int nx = x + NEIGHBOUR_DX[n];
+        int nz = z + NEIGHBOUR_DZ[n];
+        if (nx < 0 || nz < 0 || nx >= mColumns || nz >= mRows || mBlocked[nz * mColumns + nx]) {
+            return false;
+        }
+        if (n >= 4) {
+            return !mBlocked[z * mColumns + nx] && !mBlocked[nz * mColumns + x];
+        }
+        return true;
+    }
+
+    /**
+     * Binary min-heap of cell indices keyed by distance, backed by primitive arrays. Cells may be
+     * pushed more than once; stale entries are skipped by the caller.
+     */
+    private static class CellHeap {
+        private int[] mCells;
+        private float[] mKeys;
+        private int mSize;
+
+        CellHeap(int capacity) {
+            mCells = new int[Math.max(capacity, 1)];
+            mKeys = new float[Math.max(capacity, 1)];
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        float peekKey() {
+            return mKeys[0];
+        }
+
+        void push(int cell, float key) {
+            if (mSize == mCells.length) {
+                mCells = Arrays.copyOf(mCells, mSize * 2);
+                mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            }
+            int i = mSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (mKeys[parent] <= key) {
+                    break;
+                }
+                mCells[i] = mCells[parent];
+                mKeys[i] = mKeys[parent];
+                i = parent;
+            }
+            mCells[i] = cell;
+            mKeys[i] = key;
+        }
+
+        int pop() {
+            int top = mCells[0];
+            int lastCell = mCells[--mSize];
+            float lastKey = mKeys[mSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize && mKeys[child + 1] < mKeys[child]) {
+                    child++;
+                }
+                if (mKeys[child] >= lastKey) {
+                    break;
+                }
+                mCells[i] = mCells[child];
+                mKeys[i] = mKeys[child];
+                i = child;
+            }
+            mCells[i] = lastCell;
+            mKeys[i] = lastKey;
+            return top;
+        }
+    }
+}
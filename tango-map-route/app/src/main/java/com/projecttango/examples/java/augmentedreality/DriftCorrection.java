@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.Matrix;
+
+/**
+ * Latest transform between the start of service frame and the drift corrected area description
+ * frame, as reported by the Tango pose callback whenever drift correction or relocalization moves
+ * the start of service frame.
+ * The Tango callback thread publishes new values; the OpenGL thread latches them once per frame,
+ * so a frame sees a single consistent transform. Every latched change gets a new version number,
+ * which {@link AnchoredWaypoints} use to know when they have to be re-solved. Version 0 means no
+ * correction has been received yet.
+ */
+public class DriftCorrection {
+    // Changes smaller than this, in meters and in quaternion components, are ignored so that
+    // pose noise doesn't make the waypoints be re-solved continuously.
+    private static final double MIN_TRANSLATION_CHANGE = 0.005;
+    private static final double MIN_ROTATION_CHANGE = 0.0005;
+
+    // OpenGL frame from Tango frame (x, y, z) -> (x, z, -y), and the reverse, column-major.
+    private static final float[] OPENGL_FROM_TANGO =
+            new float[]{1, 0, 0, 0, 0, 0, -1, 0, 0, 1, 0, 0, 0, 0, 0, 1};
+    private static final float[] TANGO_FROM_OPENGL =
+            new float[]{1, 0, 0, 0, 0, 0, 1, 0, 0, -1, 0, 0, 0, 0, 0, 1};
+
+    private final Object mLock = new Object();
+    // Pose of the start of service frame in the area description frame, guarded by mLock.
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[]{0, 0, 0, 1};
+    private int mVersion;
+
+    // NOTE: Naming indicates which thread is in charge of updating this variable.
+    private final double[] mTranslationGlThread = new double[3];
+    private final double[] mRotationGlThread = new double[4];
+    private int mVersionGlThread;
+    private final float[] mAreaFromServiceGlThread = new float[16];
+    private final float[] mServiceFromAreaGlThread = new float[16];
+    private final float[] mTempGlThread = new float[16];
+
+    public DriftCorrection() {
+        Matrix.setIdentityM(mAreaFromServiceGlThread, 0);
+        Matrix.setIdentityM(mServiceFromAreaGlThread, 0);
+    }
+
+    /**
+     * Publishes the pose of the start of service frame in the area description frame, in the
+     * Tango engine convention.
+     * This is meant to be called from the Tango callback thread.
+     */
+    public void update(double[] translation, double[] rotation) {
+        synchronized (mLock) {
+            boolean changed = mVersion == 0;
+            for (int i = 0; i < 3 && !changed; i++) {
+                changed = Math.abs(translation[i] - mTranslation[i]) > MIN_TRANSLATION_CHANGE;
+            }
+            for (int i = 0; i < 4 && !changed; i++) {
+                changed = Math.abs(rotation[i] - mRotation[i]) > MIN_ROTATION_CHANGE;
+            }
+            if (!changed) {
+                return;
+            }
+            System.arraycopy(translation, 0, mTranslation, 0, 3);
+            System.arraycopy(rotation, 0, mRotation, 0, 4);
+            mVersion++;
+        }
+    }
+
+    /**
+     * Takes the latest published transform, if it changed.
+     * This must be run in the OpenGL thread, once per frame.
+     *
+     * @return true if the transform changed.
+     */
+    public boolean latchGlThread() {
+        synchronized (mLock) {
+            if (mVersion == mVersionGlThread) {
+                return false;
+            }
+            System.arraycopy(mTranslation, 0, mTranslationGlThread, 0, 3);
+            System.arraycopy(mRotation, 0, mRotationGlThread, 0, 4);
+            mVersionGlThread = mVersion;
+        }
+        toOpenGlMatrix(mTranslationGlThread, mRotationGlThread, mAreaFromServiceGlThread,
+                mTempGlThread);
+        Matrix.invertM(mServiceFromAreaGlThread, 0, mAreaFromServiceGlThread, 0);
+        return true;
+    }
+
+    /**
+     * Returns the version of the latched transform, 0 if there is none yet.
+     * This must be run in the OpenGL thread.
+     */
+    public int getVersionGlThread() {
+        return mVersionGlThread;
+    }
+
+    /**
+     * Transforms the x, y, z points {@code from} (inclusive) to {@code to} (exclusive) of
+     * {@code in} from the start of service frame to the area description frame.
+     * This must be run in the OpenGL thread.
+     */
+    public void toAreaGlThread(float[] in, float[] out, int from, int to) {
+        transform(mAreaFromServiceGlThread, in, out, from, to);
+    }
+
+    /**
+     * Transforms points from the area description frame to the start of service frame.
+     * This must be run in the OpenGL thread.
+     *
+     * @see #toAreaGlThread
+     */
+    public void toServiceGlThread(float[] in, float[] out, int from, int to) {
+        transform(mServiceFromAreaGlThread, in, out, from, to);
+    }
+
+    /**
+     * Moves {@code waypoints} from the start of service frame to the area description frame with
+     * the latest published transform, e.g. to store a route with the ADF it is anchored to.
+     * Can be called from any thread.
+     *
+     * @return false, leaving the waypoints as they are, if no correction has been received yet.
+     */
+    public boolean toArea(WaypointStore waypoints) {
+        float[] areaFromService = new float[16];
+        if (!getAreaFromService(areaFromService)) {
+            return false;
+        }
+        transform(areaFromService, waypoints);
+        return true;
+    }
+
+    /**
+     * Moves {@code waypoints} from the area description frame to the start of service frame with
+     * the latest published transform. Can be called from any thread.
+     *
+     * @return false, leaving the waypoints as they are, if no correction has been received yet.
+     * @see #toArea
+     */
+    public boolean toService(WaypointStore waypoints) {
+        float[] areaFromService = new float[16];
+        if (!getAreaFromService(areaFromService)) {
+            return false;
+        }
+        float[] serviceFromArea = new float[16];
+        Matrix.invertM(serviceFromArea, 0, areaFromService, 0);
+        transform(serviceFromArea, waypoints);
+        return true;
+    }
+
+    /**
+     * Takes the latest published transform, without latching it, as an OpenGL matrix.
+     */
+    private boolean getAreaFromService(float[] out) {
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        synchronized (mLock) {
+            if (mVersion == 0) {
+                return false;
+            }
+            System.arraycopy(mTranslation, 0, translation, 0, 3);
+            System.arraycopy(mRotation, 0, rotation, 0, 4);
+        }
+        toOpenGlMatrix(translation, rotation, out, new float[16]);
+        return true;
+    }
+
+    /**
+     * Builds the matrix of a pose in the Tango engine convention, expressed in the OpenGL
+     * convention the waypoints are in.
+     */
+    private static void toOpenGlMatrix(double[] translation, double[] rotation, float[] out,
+                                       float[] temp) {
+        OcclusionMap.poseToMatrix(translation, rotation, out);
+        Matrix.multiplyMM(temp, 0, out, 0, TANGO_FROM_OPENGL, 0);
+        Matrix.multiplyMM(out, 0, OPENGL_FROM_TANGO, 0, temp, 0);
+    }
+
+    private static void transform(float[] m, WaypointStore waypoints) {
+        for (int i = 0; i < waypoints.size(); i++) {
+            float x = waypoints.getX(i);
+            float y = waypoints.getY(i);
+            float z = waypoints.getZ(i);
+            waypoints.set(i, m[0] * x + m[4] * y + m[8] * z + m[12],
+                    m[1] * x + m[5] * y + m[9] * z + m[13],
+                    m[2] * x + m[6] * y + m[10] * z + m[14]);
+        }
+    }
+
+    /**
+     * Applies a rigid transform to a run of points, as one straight pass over the arrays with the
+     * matrix held in locals.
+     */
+    private static void transform(float[] m, float[] in, float[] out, int from, int to) {
+        float m0 = m[0], m1 = m[1], m2 = m[2];
+        float m4 = m[4], m5 = m[5], m6 = m[6];
+        float m8 = m[8], m9 = m[9], m10 = m[10];
+        float m12 = m[12], m13 = m[13], m14 = m[14];
+        for (int i = 3 * from; i < 3 * to; i += 3) {
+            float x = in[i];
+            float y = in[i + 1];
+            float z = in[i + 2];
+            out[i] = m0 * x + m4 * y + m8 * z + m12;
+            out[i + 1] = m1 * x + m5 * y + m9 * z + m13;
+            out[i + 2] = m2 * x + m6 * y + m10 * z + m14;
+        }
+    }
+}
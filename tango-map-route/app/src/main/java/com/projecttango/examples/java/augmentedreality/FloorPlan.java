@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Multi-floor route waypoints, partitioned by floor.
+ * Each floor holds its own waypoints and a uniform grid index over them, so that finding the
+ * waypoints around the user only looks at the current floor. Floors are linked by explicit
+ * vertical transitions (stairs, lifts). The current floor is detected from the height of the
+ * device pose.
+ * <p/>
+ * Waypoints and transitions are added first, then {@link #build()} makes the plan read-only;
+ * after that it can be shared between threads.
+ */
+public class FloorPlan {
+    public static final int TRANSITION_STAIRS = 0;
+    public static final int TRANSITION_LIFT = 1;
+
+    public static final int NO_TRANSITION = -1;
+
+    // Size in meters of the cells of the per-floor waypoint index.
+    private static final float INDEX_CELL_SIZE = 2.0f;
+    // The device is expected to be held at least this high above the floor it's on.
+    private static final float MIN_DEVICE_HEIGHT = 0.5f;
+    // Extra height change needed to switch floors, so that stairs don't make it flicker.
+    private static final float FLOOR_HYSTERESIS = 0.3f;
+
+    /**
+     * Waypoints of one floor and their grid index, stored as a cell start offset table into an
+     * array of waypoint indices sorted by cell.
+     */
+    private static final class Floor {
+        float height;
+        final WaypointStore waypoints = new WaypointStore();
+        float minX;
+        float minZ;
+        int columns;
+        int rows;
+        int[] cellStart;
+        int[] cellItems;
+
+        Floor(float height) {
+            this.height = height;
+        }
+    }
+
+    private final Floor[] mFloors;
+    private int[] mTransitionTypes = new int[4];
+    private int[] mTransitionFrom = new int[4];
+    private int[] mTransitionTo = new int[4];
+    // x, y, z per transition.
+    private float[] mTransitionPositions = new float[12];
+    private int mTransitionCount;
+    private boolean mBuilt;
+
+    /**
+     * @param floorHeights height of each floor level in the OpenGL start of service frame, in
+     *                     ascending order.
+     */
+    public FloorPlan(float[] floorHeights) {
+        mFloors = new Floor[floorHeights.length];
+        for (int i = 0; i < floorHeights.length; i++) {
+            if (i > 0 && floorHeights[i] <= floorHeights[i - 1]) {
+                throw new IllegalArgumentException("Floor heights must be ascending");
+            }
+            mFloors[i] = new Floor(floorHeights[i]);
+        }
+    }
+
+    public void addWaypoint(int floor, float x, float y, float z) {
+        checkNotBuilt();
+        mFloors[floor].waypoints.add(x, y, z);
+    }
+
+    /**
+     * Adds a way from {@code fromFloor} to {@code toFloor}, entered at the given position.
+     * Two-way transitions are added once in each direction.
+     */
+    public void addTransition(int type, int fromFloor, int toFloor, float x, float y, float z) {
+        checkNotBuilt();
+        if (mTransitionCount == mTransitionTypes.length) {
+            int capacity = 2 * mTransitionCount;
+            mTransitionTypes = Arrays.copyOf(mTransitionTypes, capacity);
+            mTransitionFrom = Arrays.copyOf(mTransitionFrom, capacity);
+            mTransitionTo = Arrays.copyOf(mTransitionTo, capacity);
+            mTransitionPositions = Arrays.copyOf(mTransitionPositions, 3 * capacity);
+        }
+        int i = mTransitionCount++;
+        mTransitionTypes[i] = type;
+        mTransitionFrom[i] = fromFloor;
+        mTransitionTo[i] = toFloor;
+        mTransitionPositions[3 * i] = x;
+        mTransitionPositions[3 * i + 1] = y;
+        mTransitionPositions[3 * i + 2] = z;
+    }
+
+    /**
+     * Moves the plan from the area description frame to the start of service frame with the
+     * latest published correction, for a plan anchored to an ADF. Must be called before
+     * {@link #build()}. Area description frames are gravity aligned, so floors stay level and
+     * their heights are only shifted.
+     *
+     * @return false, leaving the plan as it is, if no correction has been received yet.
+     */
+    public boolean toService(DriftCorrection correction) {
+        checkNotBuilt();
+        // All positions go through one store so that they are moved by the same correction.
+        WaypointStore points = new WaypointStore();
+        for (Floor floor : mFloors) {
+            points.add(0, floor.height, 0);
+            for (int i = 0; i < floor.waypoints.size(); i++) {
+                points.add(floor.waypoints.getX(i), floor.waypoints.getY(i),
+                        floor.waypoints.getZ(i));
+            }
+        }
+        for (int i = 0; i < mTransitionCount; i++) {
+            points.add(mTransitionPositions[3 * i], mTransitionPositions[3 * i + 1],
+                    mTransitionPositions[3 * i + 2]);
+        }
+        if (!correction.toService(points)) {
+            return false;
+        }
+
+        int point = 0;
+        for (Floor floor : mFloors) {
+            floor.height = points.getY(point++);
+            for (int i = 0; i < floor.waypoints.size(); i++, point++) {
+                floor.waypoints.set(i, points.getX(point), points.getY(point),
+                        points.getZ(point));
+            }
+        }
+        for (int i = 0; i < mTransitionCount; i++, point++) {
+            mTransitionPositions[3 * i] = points.getX(point);
+            mTransitionPositions[3 * i + 1] = points.getY(point);
+            mTransitionPositions[3 * i + 2] = points.getZ(point);
+        }
+        return true;
+    }
+
+    /**
+     * Builds the per-floor indices. The plan can't be modified afterwards.
+     */
+    public void build() {
+        checkNotBuilt();
+        for (Floor floor : mFloors) {
+            buildIndex(floor);
+        }
+        mBuilt = true;
+    }
+
+    public int getFloorCount() {
+        return mFloors.length;
+    }
+
+    public float getFloorHeight(int floor) {
+        return mFloors[floor].height;
+    }
+
+    public WaypointStore getWaypoints(int floor) {
+        return mFloors[floor].waypoints;
+    }
+
+    /**
+     * Returns the floor the device is on given its height, staying on {@code previousFloor} until
+     * the height is clearly within another floor.
+     *
+     * @param previousFloor floor detected last time, or -1 if none.
+     */
+    public int detectFloor(float deviceHeight, int previousFloor) {
+        int floor = 0;
+        for (int i = 1; i < mFloors.length; i++) {
+            if (deviceHeight >= mFloors[i].height + MIN_DEVICE_HEIGHT) {
+                floor = i;
+            }
+        }
+        if (previousFloor < 0 || previousFloor >= mFloors.length || floor == previousFloor) {
+            return floor;
+        }
+        // Only leave the previous floor once the height is past its limits by the hysteresis.
+        float low = previousFloor == 0 ? Float.NEGATIVE_INFINITY
+                : mFloors[previousFloor].height + MIN_DEVICE_HEIGHT - FLOOR_HYSTERESIS;
+        float high = previousFloor == mFloors.length - 1 ? Float.POSITIVE_INFINITY
+                : mFloors[previousFloor + 1].height + MIN_DEVICE_HEIGHT + FLOOR_HYSTERESIS;
+        return deviceHeight < low || deviceHeight >= high ? floor : previousFloor;
+    }
+
+    /**
+     * Finds the waypoints of a floor within {@code radius} meters of a position on the XZ plane.
+     *
+     * @param outIndices receives the indices of the waypoints in {@link #getWaypoints(int)}.
+     * @return the number of indices written, at most {@code outIndices.length}.
+     */
+    public int queryWaypoints(int floor, float x, float z, float radius, int[] outIndices) {
+        Floor f = mFloors[floor];
+        if (f.waypoints.size() == 0) {
+            return 0;
+        }
+        int column0 = Math.max(0, (int) Math.floor((x - radius - f.minX) / INDEX_CELL_SIZE));
+        int column1 = Math.min(f.columns - 1,
+                (int) Math.floor((x + radius - f.minX) / INDEX_CELL_SIZE));
+        int row0 = Math.max(0, (int) Math.floor((z - radius - f.minZ) / INDEX_CELL_SIZE));
+        int row1 = Math.min(f.rows - 1,
+                (int) Math.floor((z + radius - f.minZ) / INDEX_CELL_SIZE));
+        float radiusSquared = radius * radius;
+        int count = 0;
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int cell = row * f.columns + column;
+                for (int i = f.cellStart[cell]; i < f.cellStart[cell + 1]; i++) {
+                    int waypoint = f.cellItems[i];
+                    float dx = f.waypoints.getX(waypoint) - x;
+                    float dz = f.waypoints.getZ(waypoint) - z;
+                    if (dx * dx + dz * dz > radiusSquared) {
+                        continue;
+                    }
+                    if (count == outIndices.length) {
+                        return count;
+                    }
+                    outIndices[count++] = waypoint;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the transition to take next from {@code floor} to get to {@code destinationFloor}:
+     * the closest one to the given position among those going directly there, or else among
+     * those going in its direction.
+     *
+     * @return the transition index, or {@link #NO_TRANSITION}.
+     */
+    public int findNextTransition(int floor, int destinationFloor, float x, float z) {
+        if (floor == destinationFloor) {
+            return NO_TRANSITION;
+        }
+        int best = NO_TRANSITION;
+        boolean bestIsDirect = false;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < mTransitionCount; i++) {
+            int to = mTransitionTo[i];
+            if (mTransitionFrom[i] != floor
+                    || (to > floor) != (destinationFloor > floor)) {
+                continue;
+            }
+            boolean direct = to == destinationFloor;
+            float dx = mTransitionPositions[3 * i] - x;
+            float dz = mTransitionPositions[3 * i + 2] - z;
+            float distance = dx * dx + dz * dz;
+            if ((direct && !bestIsDirect) || (direct == bestIsDirect && distance < bestDistance)) {
+                best = i;
+                bestIsDirect = direct;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    public int getTransitionType(int transition) {
+        return mTransitionTypes[transition];
+    }
+
+    public int getTransitionTargetFloor(int transition) {
+        return mTransitionTo[transition];
+    }
+
+    public float getTransitionX(int transition) {
+        return mTransitionPositions[3 * transition];
+    }
+
+    public float getTransitionY(int transition) {
+        return mTransitionPositions[3 * transition + 1];
+    }
+
+    public float getTransitionZ(int transition) {
+        return mTransitionPositions[3 * transition + 2];
+    }
+
+    private void checkNotBuilt() {
+        if (mBuilt) {
+            throw new IllegalStateException("Floor plan already built");
+        }
+    }
+
+    private static void buildIndex(Floor floor) {
+        WaypointStore waypoints = floor.waypoints;
+        float minX = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < waypoints.size(); i++) {
+            minX = Math.min(minX, waypoints.getX(i));
+            minZ = Math.min(minZ, waypoints.getZ(i));
+            maxX = Math.max(maxX, waypoints.getX(i));
+            maxZ = Math.max(maxZ, waypoints.getZ(i));
+        }
+        if (waypoints.size() == 0) {
+            minX = 0;
+            minZ = 0;
+            maxX = 0;
+            maxZ = 0;
+        }
+        floor.minX = minX;
+        floor.minZ = minZ;
+        floor.columns = (int) ((maxX - minX) / INDEX_CELL_SIZE) + 1;
+        floor.rows = (int) ((maxZ - minZ) / INDEX_CELL_SIZE) + 1;
+
+        // Counting sort of the waypoints by cell.
+        int[] cellStart = new int[floor.columns * floor.rows + 1];
+        int[] cellOf = new int[waypoints.size()];
+        for (int i = 0; i < waypoints.size(); i++) {
+            int column = (int) ((waypoints.getX(i) - minX) / INDEX_CELL_SIZE);
+            int row = (int) ((waypoints.getZ(i) - minZ) / INDEX_CELL_SIZE);
+            cellOf[i] = row * floor.columns + column;
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int cell = 0; cell < floor.columns * floor.rows; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+        int[] cellItems = new int[waypoints.size()];
+        for (int i = 0; i < waypoints.size(); i++) {
+            cellItems[next[cellOf[i]]++] = i;
+        }
+        floor.cellStart = cellStart;
+        floor.cellItems = cellItems;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Plain text file format to describe the floors of a site, so that a {@link FloorPlan} can be
+ * written by hand. Positions are in meters in the OpenGL convention of the area description
+ * frame of the ADF the plan was made with, so that they hold from one session to the next.
+ * <p/>
+ * Layout: one entry per line, blank lines and lines starting with '#' are ignored.
+ * <pre>
+ * floors &lt;height&gt;...                    heights of the floors, ascending, first entry
+ * destination &lt;floor&gt;                  floor of the route destination
+ * waypoint &lt;floor&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;
+ * stairs|lift &lt;from&gt; &lt;to&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;    one-way transition between floors
+ * </pre>
+ */
+public final class FloorPlanFile {
+    /**
+     * A floor plan, not built yet, and the floor of its destination.
+     */
+    public static final class Result {
+        public final FloorPlan floorPlan;
+        public final int destinationFloor;
+
+        Result(FloorPlan floorPlan, int destinationFloor) {
+            this.floorPlan = floorPlan;
+            this.destinationFloor = destinationFloor;
+        }
+    }
+
+    private FloorPlanFile() {
+    }
+
+    /**
+     * Reads a floor plan. The plan is left unbuilt so that it can be moved to the start of
+     * service frame with {@link FloorPlan#toService} first. The stream is not closed.
+     *
+     * @throws IOException if the stream can't be read or is not a valid floor plan.
+     */
+    public static Result read(InputStream stream) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        FloorPlan floorPlan = null;
+        int destinationFloor = 0;
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals("floors")) {
+                    if (floorPlan != null) {
+                        throw new IOException("Floors given twice");
+                    }
+                    float[] heights = new float[fields.length - 1];
+                    for (int i = 0; i < heights.length; i++) {
+                        heights[i] = Float.parseFloat(fields[i + 1]);
+                    }
+                    floorPlan = new FloorPlan(heights);
+                    continue;
+                }
+                if (floorPlan == null) {
+                    throw new IOException("Floors must be given first");
+                }
+                if (fields[0].equals("destination") && fields.length == 2) {
+                    destinationFloor = checkFloor(floorPlan, fields[1]);
+                } else if (fields[0].equals("waypoint") && fields.length == 5) {
+                    floorPlan.addWaypoint(checkFloor(floorPlan, fields[1]),
+                            Float.parseFloat(fields[2]), Float.parseFloat(fields[3]),
+                            Float.parseFloat(fields[4]));
+                } else if ((fields[0].equals("stairs") || fields[0].equals("lift"))
+                        && fields.length == 6) {
+                    int type = fields[0].equals("stairs")
+                            ? FloorPlan.TRANSITION_STAIRS : FloorPlan.TRANSITION_LIFT;
+                    floorPlan.addTransition(type, checkFloor(floorPlan, fields[1]),
+                            checkFloor(floorPlan, fields[2]), Float.parseFloat(fields[3]),
+                            Float.parseFloat(fields[4]), Float.parseFloat(fields[5]));
+                } else {
+                    throw new IOException("Unknown entry");
+                }
+            } catch (IOException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // Also covers malformed numbers and non-ascending floor heights.
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        if (floorPlan == null) {
+            throw new IOException("No floors in floor plan");
+        }
+        return new Result(floorPlan, destinationFloor);
+    }
+
+    private static int checkFloor(FloorPlan floorPlan, String field) {
+        int floor = Integer.parseInt(field);
+        if (floor < 0 || floor >= floorPlan.getFloorCount()) {
+            throw new IllegalArgumentException("No floor " + floor);
+        }
+        return floor;
+    }
+}
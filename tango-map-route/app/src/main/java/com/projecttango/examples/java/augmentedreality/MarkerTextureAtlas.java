@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.opengl.ETC1Util;
+import android.util.Log;
+
+import org.rajawali3d.Object3D;
+import org.rajawali3d.geometry.Geometry3D;
+import org.rajawali3d.materials.textures.ATexture;
+import org.rajawali3d.materials.textures.Etc1Texture;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Single texture shared by all route and POI marker icons.
+ * The icons are decoded on a background thread, packed in a square grid of power of two cells,
+ * and compressed to ETC1 with a full mipmap chain. The compressed chain is handed to Rajawali only
+ * once it's ready, so loading never blocks scene initialization or the first frames.
+ * <p/>
+ * NOTE: ETC1 is the compressed format every OpenGL ES 2.0 Android device supports. ETC2 would
+ * require OpenGL ES 3.0, which this app doesn't ask for.
+ */
+public class MarkerTextureAtlas {
+    private static final String TAG = MarkerTextureAtlas.class.getSimpleName();
+    // RGB 565 is the input format of the ETC1 encoder.
+    private static final int BYTES_PER_PIXEL = 2;
+
+    private final Context mContext;
+    private final int[] mResourceIds;
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mSize;
+
+    // Compressed mipmap chain, largest level first. Published by the loading thread.
+    private volatile ByteBuffer[] mMipmapChain;
+    private ATexture mTexture;
+
+    /**
+     * @param cellSize size in pixels of each icon in the atlas; must be a power of two.
+     */
+    public MarkerTextureAtlas(Context context, int[] resourceIds, int cellSize) {
+        if (Integer.bitCount(cellSize) != 1) {
+            throw new IllegalArgumentException("Atlas cell size must be a power of two");
+        }
+        mContext = context.getApplicationContext();
+        mResourceIds = resourceIds.clone();
+        mCellSize = cellSize;
+        int columns = 1;
+        while (columns * columns < resourceIds.length) {
+            columns *= 2;
+        }
+        mColumns = columns;
+        mSize = columns * cellSize;
+    }
+
+    /**
+     * Decodes, packs and compresses the icons on {@code executor}.
+     */
+    public void loadAsync(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mMipmapChain = buildMipmapChain();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Exception loading marker texture atlas", e);
+                }
+            }
+        });
+    }
+
+    public boolean isReady() {
+        return mMipmapChain != null;
+    }
+
+    /**
+     * Returns the atlas texture, creating it on first call once the atlas is ready. Rajawali
+     * uploads it lazily once it's added to a material.
+     * This must be run in the OpenGL thread.
+     *
+     * @return the texture, or null while the atlas is still loading.
+     */
+    public ATexture getTextureGlThread() {
+        if (mTexture == null && mMipmapChain != null) {
+            Etc1Texture texture = new Etc1Texture("markers", mMipmapChain, null);
+            texture.setWidth(mSize);
+            texture.setHeight(mSize);
+            mTexture = texture;
+            // Rajawali keeps its own reference to the data until it's uploaded.
+            mMipmapChain = null;
+        }
+        return mTexture;
+    }
+
+    /**
+     * Writes the u0, v0, u1, v1 texture coordinates of the given icon into {@code outRect}.
+     *
+     * @return false if the icon isn't part of the atlas.
+     */
+    public boolean getCellUv(int resourceId, float[] outRect) {
+        for (int i = 0; i < mResourceIds.length; i++) {
+            if (mResourceIds[i] == resourceId) {
+                float cell = (float) mCellSize / mSize;
+                outRect[0] = (i % mColumns) * cell;
+                outRect[1] = (i / mColumns) * cell;
+                outRect[2] = outRect[0] + cell;
+                outRect[3] = outRect[1] + cell;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps the [0, 1] texture coordinates of an object into the cell of the given icon.
+     * This must be run in the OpenGL thread.
+     */
+    public void remapTextureCoords(Object3D object, int resourceId) {
+        float[] rect = new float[4];
+        if (!getCellUv(resourceId, rect)) {
+            Log.w(TAG, "Icon not found in marker atlas: " + resourceId);
+            return;
+        }
+        Geometry3D geometry = object.getGeometry();
+        FloatBuffer textureCoords = geometry.getTextureCoords();
+        for (int i = 0; i + 1 < textureCoords.limit(); i += 2) {
+            textureCoords.put(i, rect[0] + textureCoords.get(i) * (rect[2] - rect[0]));
+            textureCoords.put(i + 1, rect[1] + textureCoords.get(i + 1) * (rect[3] - rect[1]));
+        }
+        textureCoords.position(0);
+        geometry.changeBufferData(geometry.getTexCoordBufferInfo(), textureCoords, 0);
+    }
+
+    private ByteBuffer[] buildMipmapChain() {
+        Bitmap atlas = Bitmap.createBitmap(mSize, mSize, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(atlas);
+        Rect cell = new Rect();
+        for (int i = 0; i < mResourceIds.length; i++) {
+            Bitmap icon = decodeIcon(mResourceIds[i]);
+            if (icon == null) {
+                Log.w(TAG, "Can't decode marker icon: " + mResourceIds[i]);
+                continue;
+            }
+            int x = (i % mColumns) * mCellSize;
+            int y = (i / mColumns) * mCellSize;
+            cell.set(x, y, x + mCellSize, y + mCellSize);
+            canvas.drawBitmap(icon, null, cell, null);
+            icon.recycle();
+        }
+
+        int levels = Integer.numberOfTrailingZeros(mSize) + 1;
+        ByteBuffer[] chain = new ByteBuffer[levels];
+        Bitmap level = atlas;
+        for (int i = 0; i < levels; i++) {
+            int size = mSize >> i;
+            if (i > 0) {
+                Bitmap smaller = Bitmap.createScaledBitmap(level, size, size, true);
+                level.recycle();
+                level = smaller;
+            }
+            ByteBuffer pixels = ByteBuffer.allocateDirect(size * size * BYTES_PER_PIXEL);
+            level.copyPixelsToBuffer(pixels);
+            pixels.position(0);
+            chain[i] = ETC1Util.compressTexture(pixels, size, size, BYTES_PER_PIXEL,
+                    size * BYTES_PER_PIXEL).getData();
+        }
+        level.recycle();
+        return chain;
+    }
+
+    /**
+     * Decodes an icon subsampled to roughly the atlas cell size.
+     */
+    private Bitmap decodeIcon(int resourceId) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mContext.getResources(), resourceId, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= mCellSize
+                && options.outHeight / (sampleSize * 2) >= mCellSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeResource(mContext.getResources(), resourceId, options);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Low resolution depth map of the real geometry seen by the color camera, built from the latest
+ * Tango point cloud.
+ * The map is used twice: uploaded as a texture so {@link RouteGuidanceMaterial} can discard route
+ * fragments behind real surfaces, and queried on the CPU so marker clusters that are fully hidden
+ * are not submitted at all.
+ * <p/>
+ * The CPU queries go through the pose the point cloud was seen from, so they stay right as the
+ * camera moves. The texture is sampled at the screen position of the current frame instead, so
+ * it lags behind the camera by the age of the point cloud, up to a couple of frames at the depth
+ * camera rate; under fast rotation, route fragments near depth edges may be hidden or shown a
+ * little wrongly until the next point cloud.
+ * <p/>
+ * Point clouds are projected in the Tango callback thread into a back buffer which is then
+ * swapped with the OpenGL thread under a short lock, so neither thread waits for the other's work.
+ */
+public class OcclusionMap {
+    // Depths are stored in the texture as bytes covering [0, MAX_DEPTH) meters; 0 means unknown.
+    // Surfaces at MAX_DEPTH or further are stored as unknown, so they don't hide anything.
+    public static final float MAX_DEPTH = 8.0f;
+    // Points below this confidence are ignored.
+    private static final float MIN_CONFIDENCE = 0.5f;
+    // Margin in meters a surface must be in front of a marker to hide it.
+    private static final float OCCLUSION_BIAS = 0.1f;
+    private static final float UNKNOWN_DEPTH = 0;
+
+    /**
+     * One projected point cloud: the depth grid and the camera it was seen from.
+     */
+    private static final class Frame {
+        final float[] depth;
+        final float[] worldToCamera = new float[16];
+        float fx;
+        float fy;
+        float cx;
+        float cy;
+        long sequence;
+
+        Frame(int cells) {
+            depth = new float[cells];
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Object mSwapLock = new Object();
+
+    // NOTE: Naming indicates which thread is in charge of updating this variable.
+    private Frame mBackTangoThread;
+    private Frame mPending;
+    private Frame mFrontGlThread;
+
+    private final float[] mDepthToWorld = new float[16];
+    private final float[] mColorToWorld = new float[16];
+    private final float[] mDepthToCamera = new float[16];
+
+    private final ByteBuffer mTextureData;
+    private final int[] mTextureId = new int[1];
+    private long mUploadedSequence = -1;
+
+    public OcclusionMap(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mBackTangoThread = new Frame(width * height);
+        mPending = new Frame(width * height);
+        mFrontGlThread = new Frame(width * height);
+        mTextureData = ByteBuffer.allocateDirect(width * height);
+    }
+
+    /**
+     * Projects a point cloud into the depth map.
+     * This is meant to be called from the Tango callback thread.
+     * <p/>
+     * The depth camera pose (Tango engine convention) and the color camera pose (OpenGL engine
+     * convention, with the display rotation applied) are both in the OpenGL start of service
+     * frame, at the time of the point cloud, as a translation and an x, y, z, w rotation. The
+     * intrinsics and image size are those of the color camera for the display rotation.
+     *
+     * @param points   x, y, z, confidence of each point, in the depth camera frame.
+     * @param sequence strictly increasing number of the point cloud, starting at 1.
+     */
+    public void update(FloatBuffer points, int numPoints,
+                       double[] depthTranslation, double[] depthRotation,
+                       double[] colorTranslation, double[] colorRotation,
+                       float fx, float fy, float cx, float cy,
+                       float imageWidth, float imageHeight, long sequence) {
+        Frame frame = mBackTangoThread;
+        poseToMatrix(depthTranslation, depthRotation, mDepthToWorld);
+        poseToMatrix(colorTranslation, colorRotation, mColorToWorld);
+        Matrix.invertM(frame.worldToCamera, 0, mColorToWorld, 0);
+        Matrix.multiplyMM(mDepthToCamera, 0, frame.worldToCamera, 0, mDepthToWorld, 0);
+
+        // Intrinsics scaled down to the grid resolution.
+        frame.fx = fx * mWidth / imageWidth;
+        frame.fy = fy * mHeight / imageHeight;
+        frame.cx = cx * mWidth / imageWidth;
+        frame.cy = cy * mHeight / imageHeight;
+        frame.sequence = sequence;
+        Arrays.fill(frame.depth, UNKNOWN_DEPTH);
+
+        float[] m = mDepthToCamera;
+        for (int i = 0; i < numPoints; i++) {
+            float px = points.get(4 * i);
+            float py = points.get(4 * i + 1);
+            float pz = points.get(4 * i + 2);
+            if (points.get(4 * i + 3) < MIN_CONFIDENCE) {
+                continue;
+            }
+            // OpenGL camera frame: x right, y up, looking down -z.
+            float x = m[0] * px + m[4] * py + m[8] * pz + m[12];
+            float y = m[1] * px + m[5] * py + m[9] * pz + m[13];
+            float depth = -(m[2] * px + m[6] * py + m[10] * pz + m[14]);
+            if (depth <= 0) {
+                continue;
+            }
+            int column = (int) (frame.fx * x / depth + frame.cx);
+            int row = (int) (frame.cy - frame.fy * y / depth);
+            if (column < 0 || row < 0 || column >= mWidth || row >= mHeight) {
+                continue;
+            }
+            int cell = row * mWidth + column;
+            if (frame.depth[cell] == UNKNOWN_DEPTH || depth < frame.depth[cell]) {
+                frame.depth[cell] = depth;
+            }
+        }
+
+        synchronized (mSwapLock) {
+            mBackTangoThread = mPending;
+            mPending = frame;
+        }
+    }
+
+    /**
+     * Takes the latest depth map, if any, for use in this frame.
+     * This must be run in the OpenGL thread.
+     */
+    public void latchGlThread() {
+        synchronized (mSwapLock) {
+            if (mPending.sequence > mFrontGlThread.sequence) {
+                Frame front = mFrontGlThread;
+                mFrontGlThread = mPending;
+                mPending = front;
+            }
+        }
+    }
+
+    /**
+     * Whether a sphere in the OpenGL start of service frame is entirely behind the real geometry
+     * of the latched depth map. Unknown depths never occlude.
+     * This must be run in the OpenGL thread.
+     */
+    public boolean isOccluded(float x, float y, float z, float radius) {
+        Frame frame = mFrontGlThread;
+        if (frame.sequence == 0) {
+            return false;
+        }
+        float[] m = frame.worldToCamera;
+        float cameraX = m[0] * x + m[4] * y + m[8] * z + m[12];
+        float cameraY = m[1] * x + m[5] * y + m[9] * z + m[13];
+        float depth = -(m[2] * x + m[6] * y + m[10] * z + m[14]);
+        float nearest = depth - radius;
+        if (nearest <= 0) {
+            return false;
+        }
+        // Screen bounds of the sphere, conservatively computed at its nearest depth.
+        int column0 = (int) Math.floor(frame.fx * (cameraX - radius) / nearest + frame.cx);
+        int column1 = (int) Math.floor(frame.fx * (cameraX + radius) / nearest + frame.cx);
+        int row0 = (int) Math.floor(frame.cy - frame.fy * (cameraY + radius) / nearest);
+        int row1 = (int) Math.floor(frame.cy - frame.fy * (cameraY - radius) / nearest);
+        if (column0 < 0 || row0 < 0 || column1 >= mWidth || row1 >= mHeight) {
+            // Partly outside of the map, so there's no way to tell.
+            return false;
+        }
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                float surface = frame.depth[row * mWidth + column];
+                if (surface == UNKNOWN_DEPTH || surface + OCCLUSION_BIAS >= nearest) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Uploads the latched depth map if it changed, and returns the ID of the depth texture, or 0
+     * if no point cloud has been received yet.
+     * This must be run in the OpenGL thread.
+     */
+    public int getTextureIdGlThread() {
+        Frame frame = mFrontGlThread;
+        if (frame.sequence == 0) {
+            return 0;
+        }
+        if (frame.sequence == mUploadedSequence) {
+            return mTextureId[0];
+        }
+        for (int i = 0; i < frame.depth.length; i++) {
+            float depth = frame.depth[i];
+            if (depth >= MAX_DEPTH) {
+                depth = UNKNOWN_DEPTH;
+            }
+            mTextureData.put(i, (byte) Math.round(depth / MAX_DEPTH * 255));
+        }
+        mTextureData.position(0);
+
+        boolean created = mTextureId[0] != 0;
+        if (!created) {
+            GLES20.glGenTextures(1, mTextureId, 0);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId[0]);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (created) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, mTextureData);
+        } else {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, mWidth, mHeight, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, mTextureData);
+            // Nearest filtering so unknown cells are never blended with known ones.
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mUploadedSequence = frame.sequence;
+        return mTextureId[0];
+    }
+
+    /**
+     * Forgets the depth texture after the OpenGL context has been lost, so it's recreated.
+     * This must be run in the OpenGL thread.
+     */
+    public void resetGlThread() {
+        mTextureId[0] = 0;
+        mUploadedSequence = -1;
+    }
+
+    /**
+     * Builds a column-major rigid transform from a translation and an x, y, z, w quaternion.
+     */
+    static void poseToMatrix(double[] t, double[] q, float[] out) {
+        float x = (float) q[0];
+        float y = (float) q[1];
+        float z = (float) q[2];
+        float w = (float) q[3];
+        out[0] = 1 - 2 * (y * y + z * z);
+        out[1] = 2 * (x * y + w * z);
+        out[2] = 2 * (x * z - w * y);
+        out[3] = 0;
+        out[4] = 2 * (x * y - w * z);
+        out[5] = 1 - 2 * (x * x + z * z);
+        out[6] = 2 * (y * z + w * x);
+        out[7] = 0;
+        out[8] = 2 * (x * z + w * y);
+        out[9] = 2 * (y * z - w * x);
+        out[10] = 1 - 2 * (x * x + y * y);
+        out[11] = 0;
+        out[12] = (float) t[0];
+        out[13] = (float) t[1];
+        out[14] = (float) t[2];
+        out[15] = 1;
+    }
+}
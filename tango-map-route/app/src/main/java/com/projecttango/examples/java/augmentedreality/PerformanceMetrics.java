@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling performance counters for diagnosing devices in the field after the fact.
+ * The render, Tango callback and other threads bump lock-free counters; a background thread
+ * periodically turns them into rates, appends one CSV line per period to a metrics file and hands
+ * a one line summary to an optional listener, e.g. a debug overlay. The metrics file is rotated
+ * once it reaches {@link #MAX_FILE_BYTES}, keeping {@link #ROTATED_FILE_COUNT} older files, so the
+ * space it takes is capped.
+ * <p/>
+ * Below Android M the GC count comes from the global allocation counters, which are started with
+ * the metrics, and the GC time is not available: the gc_time_ms column is -1 there.
+ */
+public class PerformanceMetrics {
+    private static final String TAG = PerformanceMetrics.class.getSimpleName();
+
+    private static final String FILE_NAME = "metrics.csv";
+    private static final long MAX_FILE_BYTES = 256 * 1024;
+    private static final int ROTATED_FILE_COUNT = 2;
+    private static final String HEADER = "time_ms,fps,pose_hz,latency_avg_ms,latency_max_ms,"
+            + "markers,gc_count,gc_time_ms,update_texture_calls,get_pose_at_time_calls\n";
+
+    /**
+     * Receives a summary of every period, on the metrics thread.
+     */
+    public interface Listener {
+        void onMetrics(String summary);
+    }
+
+    private final File mDirectory;
+    private final long mPeriodMs;
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+    private volatile Listener mListener;
+
+    private final AtomicInteger mFrames = new AtomicInteger();
+    private final AtomicInteger mPoseCallbacks = new AtomicInteger();
+    private final AtomicInteger mUpdateTextureCalls = new AtomicInteger();
+    private final AtomicInteger mPoseAtTimeCalls = new AtomicInteger();
+    private final AtomicInteger mLatencySamples = new AtomicInteger();
+    private final AtomicLong mLatencySumNanos = new AtomicLong();
+    private final AtomicLong mLatencyMaxNanos = new AtomicLong();
+    private volatile int mMarkerCount;
+
+    // NOTE: Only used from the metrics thread.
+    private long mLastReportNanos;
+    private long mLastGcCount;
+    private long mLastGcTimeMs;
+
+    /**
+     * @param directory where the metrics files are written; it is created if needed.
+     * @param periodMs  time between two reports.
+     */
+    public PerformanceMetrics(File directory, long periodMs) {
+        mDirectory = directory;
+        mPeriodMs = periodMs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @SuppressWarnings("deprecation")
+    public void start() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Debug.startAllocCounting();
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLastReportNanos = System.nanoTime();
+                mLastGcCount = getGcCount();
+                mLastGcTimeMs = getGcTimeMs();
+            }
+        });
+        mWriter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, mPeriodMs, mPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void shutdown() {
+        mWriter.shutdown();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Counts a rendered frame. This is meant to be called once per frame in the OpenGL thread.
+     */
+    public void onFrameRendered() {
+        mFrames.incrementAndGet();
+    }
+
+    public void onPoseCallback() {
+        mPoseCallbacks.incrementAndGet();
+    }
+
+    /**
+     * Counts a JNI call to {@code Tango.updateTexture}.
+     */
+    public void onUpdateTexture() {
+        mUpdateTextureCalls.incrementAndGet();
+    }
+
+    /**
+     * Counts a JNI call to {@code TangoSupport.getPoseAtTime}.
+     */
+    public void onGetPoseAtTime() {
+        mPoseAtTimeCalls.incrementAndGet();
+    }
+
+    /**
+     * Records the time between a camera frame becoming available and the render camera being
+     * moved to its pose.
+     */
+    public void recordPoseToRenderLatency(long nanos) {
+        mLatencySamples.incrementAndGet();
+        mLatencySumNanos.addAndGet(nanos);
+        long max = mLatencyMaxNanos.get();
+        while (nanos > max && !mLatencyMaxNanos.compareAndSet(max, nanos)) {
+            max = mLatencyMaxNanos.get();
+        }
+    }
+
+    /**
+     * Sets the number of markers currently in the scene.
+     */
+    public void setMarkerCount(int markerCount) {
+        mMarkerCount = markerCount;
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        double seconds = (now - mLastReportNanos) / 1e9;
+        mLastReportNanos = now;
+        if (seconds <= 0) {
+            return;
+        }
+        double fps = mFrames.getAndSet(0) / seconds;
+        double poseRate = mPoseCallbacks.getAndSet(0) / seconds;
+        int updateTextureCalls = mUpdateTextureCalls.getAndSet(0);
+        int poseAtTimeCalls = mPoseAtTimeCalls.getAndSet(0);
+        int latencySamples = mLatencySamples.getAndSet(0);
+        long latencySum = mLatencySumNanos.getAndSet(0);
+        double latencyAverageMs = latencySamples == 0 ? 0 : latencySum / 1e6 / latencySamples;
+        double latencyMaxMs = mLatencyMaxNanos.getAndSet(0) / 1e6;
+        int markerCount = mMarkerCount;
+        long gcCount = getGcCount();
+        long gcTimeMs = getGcTimeMs();
+        long gcs = gcCount < 0 ? -1 : gcCount - mLastGcCount;
+        long gcMs = gcTimeMs < 0 ? -1 : gcTimeMs - mLastGcTimeMs;
+        mLastGcCount = gcCount;
+        mLastGcTimeMs = gcTimeMs;
+
+        write(String.format(Locale.US, "%d,%.1f,%.1f,%.1f,%.1f,%d,%d,%d,%d,%d\n",
+                System.currentTimeMillis(), fps, poseRate, latencyAverageMs, latencyMaxMs,
+                markerCount, gcs, gcMs, updateTextureCalls, poseAtTimeCalls));
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMetrics(String.format(Locale.US,
+                    "%.0f fps  pose %.0f Hz  latency %.0f/%.0f ms  markers %d\n"
+                            + "gc %d (%d ms)  jni updateTexture %d getPoseAtTime %d",
+                    fps, poseRate, latencyAverageMs, latencyMaxMs, markerCount, gcs, gcMs,
+                    updateTextureCalls, poseAtTimeCalls));
+        }
+    }
+
+    /**
+     * Appends a line to the metrics file, rotating the files first if it's full.
+     */
+    private void write(String line) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Can't create metrics directory " + mDirectory);
+            return;
+        }
+        File file = new File(mDirectory, FILE_NAME);
+        if (file.length() + line.length() > MAX_FILE_BYTES) {
+            rotate();
+        }
+        boolean newFile = !file.exists();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (newFile) {
+                writer.write(HEADER);
+            }
+            writer.write(line);
+        } catch (IOException e) {
+            Log.w(TAG, "Exception writing metrics", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Exception closing metrics file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shifts metrics.csv to metrics.csv.1, metrics.csv.1 to metrics.csv.2 and so on, dropping
+     * the oldest.
+     */
+    private void rotate() {
+        File oldest = new File(mDirectory, FILE_NAME + "." + ROTATED_FILE_COUNT);
+        if (oldest.exists() && !oldest.delete()) {
+            Log.w(TAG, "Can't delete " + oldest);
+        }
+        for (int i = ROTATED_FILE_COUNT - 1; i >= 0; i--) {
+            File from = new File(mDirectory, i == 0 ? FILE_NAME : FILE_NAME + "." + i);
+            if (from.exists() && !from.renameTo(new File(mDirectory, FILE_NAME + "." + (i + 1)))) {
+                Log.w(TAG, "Can't rotate " + from);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of garbage collections since the process started, or since the metrics
+     * were started below Android M, or -1 if the platform doesn't report it.
+     */
+    @SuppressWarnings("deprecation")
+    private static long getGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return Debug.getGlobalGcInvocationCount();
+        }
+        return getRuntimeStat("art.gc.gc-count");
+    }
+
+    /**
+     * Returns the time spent in garbage collections since the process started, or -1 below
+     * Android M or if the platform doesn't report it.
+     */
+    private static long getGcTimeMs() {
+        return getRuntimeStat("art.gc.gc-time");
+    }
+
+    private static long getRuntimeStat(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
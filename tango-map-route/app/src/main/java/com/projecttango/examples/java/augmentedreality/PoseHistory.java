@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Fixed capacity history of the poses received from the Tango pose callback, kept in primitive
+ * ring buffers so that the pose at a given time can be answered in-process, without a JNI call
+ * into the Tango service and without allocating.
+ * Queries between two recorded poses are answered by binary search on the timestamps, linear
+ * interpolation of the translation and normalized linear interpolation of the rotation.
+ * <p/>
+ * All methods are thread-safe; the lock is only held for the copy of a single pose.
+ */
+public class PoseHistory {
+    private final int mCapacity;
+    private final double[] mTimestamps;
+    // x, y, z per pose.
+    private final double[] mTranslations;
+    // x, y, z, w per pose.
+    private final double[] mRotations;
+    // Index of the oldest pose and number of poses held.
+    private int mFirst;
+    private int mCount;
+
+    public PoseHistory(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new double[capacity];
+        mTranslations = new double[3 * capacity];
+        mRotations = new double[4 * capacity];
+    }
+
+    /**
+     * Records a pose. Poses must be added in time order; older ones are ignored.
+     *
+     * @param translation x, y, z.
+     * @param rotation    x, y, z, w quaternion.
+     */
+    public synchronized void add(double timestamp, double[] translation, double[] rotation) {
+        if (mCount > 0 && timestamp <= mTimestamps[index(mCount - 1)]) {
+            return;
+        }
+        int slot;
+        if (mCount < mCapacity) {
+            slot = index(mCount);
+            mCount++;
+        } else {
+            slot = mFirst;
+            mFirst = (mFirst + 1) % mCapacity;
+        }
+        mTimestamps[slot] = timestamp;
+        System.arraycopy(translation, 0, mTranslations, 3 * slot, 3);
+        System.arraycopy(rotation, 0, mRotations, 4 * slot, 4);
+    }
+
+    /**
+     * Writes the pose at {@code timestamp} into the given arrays.
+     *
+     * @param outTranslation x, y, z.
+     * @param outRotation    x, y, z, w quaternion.
+     * @return false if {@code timestamp} is outside of the recorded time range, in which case the
+     * caller has to ask the Tango service.
+     */
+    public synchronized boolean getPoseAtTime(double timestamp, double[] outTranslation,
+                                              double[] outRotation) {
+        if (mCount == 0 || timestamp < mTimestamps[mFirst]
+                || timestamp > mTimestamps[index(mCount - 1)]) {
+            return false;
+        }
+
+        // Last pose at or before the timestamp.
+        int low = 0;
+        int high = mCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mTimestamps[index(middle)] <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int before = index(low);
+        if (mTimestamps[before] == timestamp || low == mCount - 1) {
+            System.arraycopy(mTranslations, 3 * before, outTranslation, 0, 3);
+            System.arraycopy(mRotations, 4 * before, outRotation, 0, 4);
+            return true;
+        }
+
+        int after = index(low + 1);
+        double t = (timestamp - mTimestamps[before])
+                / (mTimestamps[after] - mTimestamps[before]);
+        for (int i = 0; i < 3; i++) {
+            double a = mTranslations[3 * before + i];
+            outTranslation[i] = a + (mTranslations[3 * after + i] - a) * t;
+        }
+
+        // Take the shortest path between the two rotations.
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += mRotations[4 * before + i] * mRotations[4 * after + i];
+        }
+        double sign = dot < 0 ? -1 : 1;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            double a = mRotations[4 * before + i];
+            outRotation[i] = a + (sign * mRotations[4 * after + i] - a) * t;
+            norm += outRotation[i] * outRotation[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            outRotation[i] /= norm;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the timestamp of the most recent pose, or -1 if there is none.
+     */
+    public synchronized double getLatestTimestamp() {
+        return mCount == 0 ? -1 : mTimestamps[index(mCount - 1)];
+    }
+
+    public synchronized void clear() {
+        mFirst = 0;
+        mCount = 0;
+    }
+
+    private int index(int i) {
+        return (mFirst + i) % mCapacity;
+    }
+}
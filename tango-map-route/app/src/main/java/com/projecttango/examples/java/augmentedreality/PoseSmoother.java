@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Low latency smoothing of the render camera pose, to keep close markers from shimmering.
+ * Translation goes through a One-Euro filter: a low-pass filter whose cutoff frequency rises with
+ * the speed, so jitter is removed while standing still and almost no lag is added while moving.
+ * Rotation is filtered the same way with a slerp towards the new rotation, by a factor that
+ * adapts to the angular speed.
+ * <p/>
+ * The filter keeps its state in primitive fields and writes into the caller's arrays, so it
+ * doesn't allocate. Parameters can be tuned from any thread.
+ * NOTE: {@link #filter} is not thread-safe; it is meant to be called from the OpenGL thread.
+ */
+public class PoseSmoother {
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_ONE_EURO = 1;
+
+    // Poses further apart than this, in seconds, restart the filter rather than blend.
+    private static final double MAX_TIME_GAP = 0.5;
+    // Below this angle, in radians, slerp is replaced by a normalized lerp.
+    private static final double MIN_SLERP_ANGLE = 1e-4;
+
+    private volatile int mFilter = FILTER_ONE_EURO;
+    // Translation: cutoff in Hz when still, its increase per m/s, and the speed cutoff in Hz.
+    private volatile double mMinCutoff = 1.5;
+    private volatile double mBeta = 10;
+    private volatile double mSpeedCutoff = 1.0;
+    // Rotation: cutoff in Hz when still and its increase per rad/s.
+    private volatile double mRotationMinCutoff = 2.0;
+    private volatile double mRotationBeta = 10;
+
+    private boolean mInitialized;
+    private double mLastTimestamp;
+    private final double[] mRawTranslation = new double[3];
+    private final double[] mTranslation = new double[3];
+    private final double[] mSpeed = new double[3];
+    private final double[] mRawRotation = new double[4];
+    private final double[] mRotation = new double[4];
+    private double mAngularSpeed;
+
+    /**
+     * Selects {@link #FILTER_NONE} or {@link #FILTER_ONE_EURO}.
+     */
+    public void setFilter(int filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * Tunes the translation filter.
+     *
+     * @param minCutoff   cutoff frequency in Hz when still; lower removes more jitter.
+     * @param beta        cutoff increase in Hz per m/s of speed; higher reduces lag when moving.
+     * @param speedCutoff cutoff frequency in Hz of the speed estimate.
+     */
+    public void setTranslationParameters(double minCutoff, double beta, double speedCutoff) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mSpeedCutoff = speedCutoff;
+    }
+
+    /**
+     * Tunes the rotation filter.
+     *
+     * @param minCutoff cutoff frequency in Hz when still.
+     * @param beta      cutoff increase in Hz per rad/s of angular speed.
+     */
+    public void setRotationParameters(double minCutoff, double beta) {
+        mRotationMinCutoff = minCutoff;
+        mRotationBeta = beta;
+    }
+
+    /**
+     * Forgets the previous poses, e.g. after tracking was lost.
+     */
+    public void reset() {
+        mInitialized = false;
+    }
+
+    /**
+     * Filters a pose.
+     *
+     * @param timestamp      pose time in seconds.
+     * @param translation    x, y, z.
+     * @param rotation       x, y, z, w quaternion.
+     * @param outTranslation receives the filtered translation; may be {@code translation}.
+     * @param outRotation    receives the filtered rotation; may be {@code rotation}.
+     */
+    public void filter(double timestamp, double[] translation, double[] rotation,
+                       double[] outTranslation, double[] outRotation) {
+        double dt = timestamp - mLastTimestamp;
+        if (mFilter == FILTER_NONE || !mInitialized || dt <= 0 || dt > MAX_TIME_GAP) {
+            mInitialized = mFilter != FILTER_NONE;
+            mLastTimestamp = timestamp;
+            System.arraycopy(translation, 0, mRawTranslation, 0, 3);
+            System.arraycopy(translation, 0, mTranslation, 0, 3);
+            System.arraycopy(rotation, 0, mRawRotation, 0, 4);
+            System.arraycopy(rotation, 0, mRotation, 0, 4);
+            mSpeed[0] = 0;
+            mSpeed[1] = 0;
+            mSpeed[2] = 0;
+            mAngularSpeed = 0;
+            System.arraycopy(translation, 0, outTranslation, 0, 3);
+            System.arraycopy(rotation, 0, outRotation, 0, 4);
+            return;
+        }
+        mLastTimestamp = timestamp;
+
+        // One-Euro filter on each translation axis.
+        double speedAlpha = alpha(mSpeedCutoff, dt);
+        for (int i = 0; i < 3; i++) {
+            double speed = (translation[i] - mRawTranslation[i]) / dt;
+            mSpeed[i] += speedAlpha * (speed - mSpeed[i]);
+            double alpha = alpha(mMinCutoff + mBeta * Math.abs(mSpeed[i]), dt);
+            mTranslation[i] += alpha * (translation[i] - mTranslation[i]);
+            mRawTranslation[i] = translation[i];
+        }
+
+        // Angular speed from the angle between the previous and the new raw rotation.
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += mRawRotation[i] * rotation[i];
+        }
+        double angle = 2 * Math.acos(Math.min(1, Math.abs(dot)));
+        mAngularSpeed += speedAlpha * (angle / dt - mAngularSpeed);
+        System.arraycopy(rotation, 0, mRawRotation, 0, 4);
+        slerpTowards(rotation,
+                alpha(mRotationMinCutoff + mRotationBeta * mAngularSpeed, dt));
+
+        System.arraycopy(mTranslation, 0, outTranslation, 0, 3);
+        System.arraycopy(mRotation, 0, outRotation, 0, 4);
+    }
+
+    /**
+     * Moves the filtered rotation towards {@code target} by the fraction {@code t} of the way,
+     * along the shortest arc.
+     */
+    private void slerpTowards(double[] target, double t) {
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += mRotation[i] * target[i];
+        }
+        double sign = dot < 0 ? -1 : 1;
+        dot = Math.abs(dot);
+        double from;
+        double to;
+        double angle = Math.acos(Math.min(1, dot));
+        if (angle < MIN_SLERP_ANGLE) {
+            from = 1 - t;
+            to = t;
+        } else {
+            double sin = Math.sin(angle);
+            from = Math.sin((1 - t) * angle) / sin;
+            to = Math.sin(t * angle) / sin;
+        }
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] = from * mRotation[i] + to * sign * target[i];
+            norm += mRotation[i] * mRotation[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] /= norm;
+        }
+    }
+
+    /**
+     * Smoothing factor of an exponential low-pass filter with the given cutoff frequency.
+     */
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1 / (2 * Math.PI * cutoff);
+        return 1 / (1 + tau / dt);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact file format to share a walked route between devices.
+ * A route is stored together with the UUID of the ADF its coordinates are anchored to.
+ * Waypoint coordinates are quantized to {@link #QUANTUM} meters and written as the zigzag varint
+ * encoded difference with the previous waypoint, which takes one or two bytes per coordinate for
+ * a normally walked route.
+ * <p/>
+ * Layout: magic, version byte, ADF UUID (modified UTF-8, empty if none), waypoint count (varint),
+ * then x, y, z deltas (zigzag varints) per waypoint.
+ */
+public final class RouteFile {
+    public static final float QUANTUM = 0.01f;
+
+    private static final int MAGIC = 0x54524f55; // "TROU"
+    private static final int VERSION = 1;
+
+    private RouteFile() {
+    }
+
+    /**
+     * Writes a route. The stream is flushed but not closed.
+     *
+     * @param adfUuid UUID of the ADF the route is anchored to, or null if none.
+     */
+    public static void write(OutputStream stream, String adfUuid, WaypointStore waypoints)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(adfUuid == null ? "" : adfUuid);
+        writeVarint(out, waypoints.size());
+        int previousX = 0;
+        int previousY = 0;
+        int previousZ = 0;
+        for (int i = 0; i < waypoints.size(); i++) {
+            int x = quantize(waypoints.getX(i));
+            int y = quantize(waypoints.getY(i));
+            int z = quantize(waypoints.getZ(i));
+            writeVarint(out, zigzag(x - previousX));
+            writeVarint(out, zigzag(y - previousY));
+            writeVarint(out, zigzag(z - previousZ));
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a route, adding its waypoints to {@code into} as they are decoded so the file is
+     * never held in memory. The stream is not closed.
+     *
+     * @return the UUID of the ADF the route is anchored to, or null if none.
+     * @throws IOException if the stream is not a route file or is truncated.
+     */
+    public static String read(InputStream stream, WaypointStore into) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a route file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported route file version: " + version);
+        }
+        String adfUuid = in.readUTF();
+        int count = readVarint(in);
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        for (int i = 0; i < count; i++) {
+            x += unzigzag(readVarint(in));
+            y += unzigzag(readVarint(in));
+            z += unzigzag(readVarint(in));
+            into.add(x * QUANTUM, y * QUANTUM, z * QUANTUM);
+        }
+        return adfUuid.isEmpty() ? null : adfUuid;
+    }
+
+    private static int quantize(float meters) {
+        return Math.round(meters / QUANTUM);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated route file");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in route file");
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.materials.shaders.FragmentShader;
+import org.rajawali3d.materials.shaders.VertexShader;
+
+/**
+ * Material that animates route guidance entirely on the GPU.
+ * Every vertex carries its distance along the route in the first texture coordinate, so a single
+ * time uniform is enough to make a wave of light and height travel along all the markers towards
+ * the destination. The CPU cost per frame is one uniform upload whatever the number of markers.
+ * Markers take the color of their route from the vertex colors, so several routes can share one
+ * mesh.
+ */
+public class RouteGuidanceMaterial extends Material {
+    // Length in meters between two consecutive pulses, and their speed in meters per second.
+    private static final float PULSE_WAVELENGTH = 2.0f;
+    private static final float PULSE_SPEED = 1.5f;
+    // How high markers rise at the top of a pulse, in meters.
+    private static final float PULSE_HEIGHT = 0.05f;
+    // Texture unit the occlusion depth map is bound to, away from the units Rajawali uses.
+    private static final int OCCLUSION_TEXTURE_UNIT = 7;
+    // Margin in meters a real surface must be in front of a fragment to hide it.
+    private static final float OCCLUSION_BIAS = 0.1f;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n"
+            + "uniform float uTime;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec2 aTextureCoord;\n"
+            + "attribute vec4 aVertexColor;\n"
+            + "varying float vPulse;\n"
+            + "varying float vViewDepth;\n"
+            + "varying vec4 vRouteColor;\n"
+            + "void main() {\n"
+            + "    vRouteColor = aVertexColor;\n"
+            + "    float phase = aTextureCoord.x / " + PULSE_WAVELENGTH + " - uTime * "
+            + (PULSE_SPEED / PULSE_WAVELENGTH) + ";\n"
+            + "    vPulse = 0.5 + 0.5 * cos(6.2831853 * phase);\n"
+            + "    vec4 position = aPosition;\n"
+            + "    position.y += " + PULSE_HEIGHT + " * vPulse;\n"
+            + "    gl_Position = uMVPMatrix * position;\n"
+            // With a perspective projection, w is the distance along the view direction.
+            + "    vViewDepth = gl_Position.w;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+            + "uniform sampler2D uOcclusionDepth;\n"
+            + "uniform vec2 uViewportSize;\n"
+            + "uniform float uOcclusionEnabled;\n"
+            + "varying float vPulse;\n"
+            + "varying float vViewDepth;\n"
+            + "varying vec4 vRouteColor;\n"
+            + "void main() {\n"
+            + "    if (uOcclusionEnabled > 0.5) {\n"
+            // The depth map rows go from the top of the image to the bottom.
+            + "        vec2 uv = vec2(gl_FragCoord.x / uViewportSize.x,\n"
+            + "                1.0 - gl_FragCoord.y / uViewportSize.y);\n"
+            + "        float surface = texture2D(uOcclusionDepth, uv).r * "
+            + OcclusionMap.MAX_DEPTH + ";\n"
+            // 0 is unknown depth, which includes surfaces beyond the range of the map.
+            + "        if (surface > 0.0 && surface + " + OCCLUSION_BIAS + " < vViewDepth) {\n"
+            + "            discard;\n"
+            + "        }\n"
+            + "    }\n"
+            + "    gl_FragColor = vec4(vRouteColor.rgb * (0.4 + 0.6 * vPulse), vRouteColor.a);\n"
+            + "}\n";
+
+    private final GuidanceVertexShader mGuidanceVertexShader;
+    private final GuidanceFragmentShader mGuidanceFragmentShader;
+
+    public RouteGuidanceMaterial() {
+        this(new GuidanceVertexShader(), new GuidanceFragmentShader());
+    }
+
+    private RouteGuidanceMaterial(GuidanceVertexShader vertexShader,
+                                  GuidanceFragmentShader fragmentShader) {
+        super(vertexShader, fragmentShader);
+        mGuidanceVertexShader = vertexShader;
+        mGuidanceFragmentShader = fragmentShader;
+        useVertexColors(true);
+    }
+
+    /**
+     * Sets the animation time in seconds. This is the only per frame update the animation needs.
+     */
+    public void setTime(float seconds) {
+        // Wrap to one pulse period to keep the shader away from large, imprecise values.
+        mGuidanceVertexShader.mTime = seconds % (PULSE_WAVELENGTH / PULSE_SPEED);
+    }
+
+    /**
+     * Hides route fragments behind the real geometry of the given depth map texture, or disables
+     * occlusion when {@code textureId} is 0.
+     * This must be run in the OpenGL thread.
+     */
+    public void setOcclusion(int textureId, int viewportWidth, int viewportHeight) {
+        mGuidanceFragmentShader.mOcclusionTextureId = textureId;
+        mGuidanceFragmentShader.mViewportSize[0] = viewportWidth;
+        mGuidanceFragmentShader.mViewportSize[1] = viewportHeight;
+    }
+
+    private static class GuidanceVertexShader extends VertexShader {
+        private int muTimeHandle;
+        private float mTime;
+
+        GuidanceVertexShader() {
+            super(VERTEX_SHADER);
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            super.setLocations(programHandle);
+            muTimeHandle = getUniformLocation(programHandle, "uTime");
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glUniform1f(muTimeHandle, mTime);
+        }
+    }
+
+    private static class GuidanceFragmentShader extends FragmentShader {
+        private final float[] mViewportSize = new float[2];
+        private int mOcclusionTextureId;
+        private int muOcclusionDepthHandle;
+        private int muViewportSizeHandle;
+        private int muOcclusionEnabledHandle;
+
+        GuidanceFragmentShader() {
+            super(FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            super.setLocations(programHandle);
+            muOcclusionDepthHandle = getUniformLocation(programHandle, "uOcclusionDepth");
+            muViewportSizeHandle = getUniformLocation(programHandle, "uViewportSize");
+            muOcclusionEnabledHandle = getUniformLocation(programHandle, "uOcclusionEnabled");
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glUniform1f(muOcclusionEnabledHandle, mOcclusionTextureId != 0 ? 1 : 0);
+            if (mOcclusionTextureId != 0) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + OCCLUSION_TEXTURE_UNIT);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOcclusionTextureId);
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glUniform1i(muOcclusionDepthHandle, OCCLUSION_TEXTURE_UNIT);
+                GLES20.glUniform2fv(muViewportSizeHandle, 1, mViewportSize, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.geometry.Geometry3D;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A single mesh holding the markers of several routes, each marker a flat arrow on the floor
+ * pointing to the next route point. Each vertex stores its distance along its route in its first
+ * texture coordinate for {@link RouteGuidanceMaterial} to animate on, and the color of its route
+ * as its vertex color, so every route is drawn in one call.
+ * The buffers are allocated once for {@code capacity} markers and shared by all routes: each
+ * route owns a contiguous range of markers. Adding, updating, hiding or removing a route only
+ * rewrites and uploads that range; unused markers are collapsed to a point.
+ */
+public class RouteGuidanceMesh extends Object3D {
+    public static final int NO_ROUTE = -1;
+
+    private static final int VERTICES_PER_MARKER = 3;
+    private static final float ARROW_LENGTH = 0.12f;
+    private static final float ARROW_HALF_WIDTH = 0.06f;
+
+    private final int mCapacity;
+    private final float[] mVertexData;
+    private final float[] mTextureCoordData;
+    private final float[] mColorData;
+
+    // Per route slot: first marker and number of markers of its range, markers in use, and
+    // r, g, b, a color.
+    private final boolean[] mRouteUsed;
+    private final boolean[] mRouteVisible;
+    private final int[] mRouteFirst;
+    private final int[] mRouteCapacity;
+    private final int[] mRouteMarkerCount;
+    private final float[] mRouteColors;
+
+    public RouteGuidanceMesh(int capacity, int maxRoutes) {
+        mCapacity = capacity;
+        mVertexData = new float[capacity * VERTICES_PER_MARKER * 3];
+        mTextureCoordData = new float[capacity * VERTICES_PER_MARKER * 2];
+        mColorData = new float[capacity * VERTICES_PER_MARKER * 4];
+        mRouteUsed = new boolean[maxRoutes];
+        mRouteVisible = new boolean[maxRoutes];
+        mRouteFirst = new int[maxRoutes];
+        mRouteCapacity = new int[maxRoutes];
+        mRouteMarkerCount = new int[maxRoutes];
+        mRouteColors = new float[4 * maxRoutes];
+        float[] normals = new float[mVertexData.length];
+        int[] indices = new int[capacity * VERTICES_PER_MARKER];
+        for (int i = 0; i < indices.length; i++) {
+            normals[3 * i + 1] = 1;
+            indices[i] = i;
+        }
+        setData(mVertexData, GLES20.GL_DYNAMIC_DRAW, normals, GLES20.GL_STATIC_DRAW,
+                mTextureCoordData, GLES20.GL_DYNAMIC_DRAW, mColorData, GLES20.GL_DYNAMIC_DRAW,
+                indices, GLES20.GL_STATIC_DRAW, true);
+        setDoubleSided(true);
+    }
+
+    /**
+     * Reserves a route slot drawn in the given RGBA color, with components in the [0, 1] range.
+     * The route is empty until {@link #setRoute} is called.
+     *
+     * @return the route slot, or {@link #NO_ROUTE} if all slots are taken.
+     */
+    public int addRoute(float r, float g, float b, float a) {
+        for (int route = 0; route < mRouteUsed.length; route++) {
+            if (!mRouteUsed[route]) {
+                mRouteUsed[route] = true;
+                mRouteVisible[route] = true;
+                mRouteFirst[route] = 0;
+                mRouteCapacity[route] = 0;
+                mRouteMarkerCount[route] = 0;
+                setRouteColor(route, r, g, b, a);
+                return route;
+            }
+        }
+        return NO_ROUTE;
+    }
+
+    /**
+     * Removes a route and frees its range of markers.
+     * This must be run in the OpenGL thread.
+     */
+    public void removeRoute(int route) {
+        if (!mRouteUsed[route]) {
+            return;
+        }
+        releaseRange(route);
+        mRouteUsed[route] = false;
+    }
+
+    /**
+     * Shows or hides a route without losing its markers.
+     * This must be run in the OpenGL thread.
+     */
+    public void setRouteVisible(int route, boolean visible) {
+        if (mRouteVisible[route] == visible) {
+            return;
+        }
+        mRouteVisible[route] = visible;
+        uploadVertices(mRouteFirst[route], mRouteCapacity[route], visible);
+    }
+
+    /**
+     * Changes the color of a route, with components in the [0, 1] range.
+     * This must be run in the OpenGL thread.
+     */
+    public void setRouteColor(int route, float r, float g, float b, float a) {
+        mRouteColors[4 * route] = r;
+        mRouteColors[4 * route + 1] = g;
+        mRouteColors[4 * route + 2] = b;
+        mRouteColors[4 * route + 3] = a;
+        writeColors(route);
+        Geometry3D geometry = getGeometry();
+        uploadRange(geometry.getColorBufferInfo(), geometry.getColors(), mColorData,
+                mRouteFirst[route] * VERTICES_PER_MARKER * 4,
+                mRouteCapacity[route] * VERTICES_PER_MARKER * 4);
+    }
+
+    /**
+     * Places one marker every {@code stride} points of the given route, in the range of markers
+     * of that route. The range is only moved when the route no longer fits in it.
+     * This must be run in the OpenGL thread.
+     *
+     * @param route      route slot returned by {@link #addRoute}.
+     * @param pointsXZ   interleaved x, z floor positions of the route, from start to destination.
+     * @param pointCount number of points in {@code pointsXZ}.
+     * @param stride     number of route points between two markers.
+     * @param height     height of the markers in the OpenGL start of service frame.
+     * @return false if the buffers are too full for the whole route, in which case only the
+     * markers nearest its start are drawn, possibly none.
+     */
+    public boolean setRoute(int route, float[] pointsXZ, int pointCount, int stride,
+                            float height) {
+        int needed = (pointCount + stride - 1) / stride;
+        boolean moved = false;
+        if (needed > mRouteCapacity[route]) {
+            releaseRange(route);
+            // Leave some room so that a slightly longer re-planned route stays in place.
+            if (!allocateRange(route, needed + needed / 4)) {
+                mRouteCapacity[route] = 0;
+                allocateRange(route, needed);
+            }
+            moved = true;
+        }
+        int first = mRouteFirst[route];
+        int capacity = mRouteCapacity[route];
+
+        int marker = 0;
+        float routeDistance = 0;
+        for (int i = 0; i < pointCount && marker < capacity; i++) {
+            if (i > 0) {
+                routeDistance += (float) Math.hypot(pointsXZ[2 * i] - pointsXZ[2 * i - 2],
+                        pointsXZ[2 * i + 1] - pointsXZ[2 * i - 1]);
+            }
+            if (i % stride != 0) {
+                continue;
+            }
+            // Point the arrow towards the next route point, or along the last segment.
+            int from = i + 1 < pointCount ? i : Math.max(i - 1, 0);
+            int to = Math.min(from + 1, pointCount - 1);
+            float dx = pointsXZ[2 * to] - pointsXZ[2 * from];
+            float dz = pointsXZ[2 * to + 1] - pointsXZ[2 * from + 1];
+            float length = (float) Math.hypot(dx, dz);
+            if (length == 0) {
+                dx = 0;
+                dz = 1;
+            } else {
+                dx /= length;
+                dz /= length;
+            }
+            float x = pointsXZ[2 * i];
+            float z = pointsXZ[2 * i + 1];
+            int m = first + marker;
+            putVertex(m, 0, x + dx * ARROW_LENGTH, height, z + dz * ARROW_LENGTH,
+                    routeDistance);
+            putVertex(m, 1, x - dz * ARROW_HALF_WIDTH, height, z + dx * ARROW_HALF_WIDTH,
+                    routeDistance);
+            putVertex(m, 2, x + dz * ARROW_HALF_WIDTH, height, z - dx * ARROW_HALF_WIDTH,
+                    routeDistance);
+            marker++;
+        }
+        mRouteMarkerCount[route] = marker;
+        collapse(first + marker, first + capacity);
+
+        uploadVertices(first, capacity, mRouteVisible[route]);
+        Geometry3D geometry = getGeometry();
+        uploadRange(geometry.getTexCoordBufferInfo(), geometry.getTextureCoords(),
+                mTextureCoordData, first * VERTICES_PER_MARKER * 2,
+                capacity * VERTICES_PER_MARKER * 2);
+        if (moved) {
+            writeColors(route);
+            uploadRange(geometry.getColorBufferInfo(), geometry.getColors(), mColorData,
+                    first * VERTICES_PER_MARKER * 4, capacity * VERTICES_PER_MARKER * 4);
+        }
+        return capacity >= needed;
+    }
+
+    public int getMarkerCount(int route) {
+        return mRouteMarkerCount[route];
+    }
+
+    /**
+     * Returns the number of markers of all the visible routes.
+     */
+    public int getTotalMarkerCount() {
+        int count = 0;
+        for (int route = 0; route < mRouteUsed.length; route++) {
+            if (mRouteUsed[route] && mRouteVisible[route]) {
+                count += mRouteMarkerCount[route];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Collapses the markers of a route and gives its range back.
+     */
+    private void releaseRange(int route) {
+        int first = mRouteFirst[route];
+        int capacity = mRouteCapacity[route];
+        collapse(first, first + capacity);
+        uploadVertices(first, capacity, true);
+        mRouteCapacity[route] = 0;
+        mRouteMarkerCount[route] = 0;
+    }
+
+    /**
+     * Gives the route the first free range of {@code markers} markers, packing the other routes
+     * together first if the free space is too fragmented. The range is shrunk to the remaining
+     * free space if there isn't enough, possibly to no markers at all.
+     *
+     * @return false if the range had to be shrunk.
+     */
+    private boolean allocateRange(int route, int markers) {
+        int start = findFreeRange(markers);
+        if (start < 0) {
+            compact();
+            start = findFreeRange(markers);
+        }
+        if (start >= 0) {
+            mRouteFirst[route] = start;
+            mRouteCapacity[route] = markers;
+            return true;
+        }
+        // After compacting, the free space is all at the end.
+        int end = 0;
+        for (int other = 0; other < mRouteUsed.length; other++) {
+            if (mRouteUsed[other] && other != route) {
+                end = Math.max(end, mRouteFirst[other] + mRouteCapacity[other]);
+            }
+        }
+        mRouteFirst[route] = end;
+        mRouteCapacity[route] = mCapacity - end;
+        return false;
+    }
+
+    /**
+     * Returns the first marker of the first free range of at least {@code markers} markers, or -1.
+     */
+    private int findFreeRange(int markers) {
+        // Free ranges start either at 0 or at the end of a route.
+        for (int candidate = -1; candidate < mRouteUsed.length; candidate++) {
+            int start;
+            if (candidate < 0) {
+                start = 0;
+            } else if (mRouteUsed[candidate] && mRouteCapacity[candidate] > 0) {
+                start = mRouteFirst[candidate] + mRouteCapacity[candidate];
+            } else {
+                continue;
+            }
+            int end = mCapacity;
+            boolean free = true;
+            for (int other = 0; other < mRouteUsed.length; other++) {
+                if (!mRouteUsed[other] || mRouteCapacity[other] == 0) {
+                    continue;
+                }
+                int otherFirst = mRouteFirst[other];
+                int otherEnd = otherFirst + mRouteCapacity[other];
+                if (otherFirst <= start && start < otherEnd) {
+                    free = false;
+                    break;
+                }
+                if (otherFirst >= start) {
+                    end = Math.min(end, otherFirst);
+                }
+            }
+            if (free && end - start >= markers) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves all the routes to the start of the buffers, in order, and uploads them whole.
+     * Only needed when adding or growing a route while the free space is fragmented.
+     */
+    private void compact() {
+        int next = 0;
+        for (int i = 0; i < mRouteUsed.length; i++) {
+            // Pick the remaining route with the lowest range; there are only a few routes.
+            int route = -1;
+            for (int other = 0; other < mRouteUsed.length; other++) {
+                if (mRouteUsed[other] && mRouteCapacity[other] > 0
+                        && mRouteFirst[other] >= next
+                        && (route < 0 || mRouteFirst[other] < mRouteFirst[route])) {
+                    route = other;
+                }
+            }
+            if (route < 0) {
+                break;
+            }
+            int first = mRouteFirst[route];
+            int vertices = mRouteCapacity[route] * VERTICES_PER_MARKER;
+            if (first != next) {
+                int from = first * VERTICES_PER_MARKER;
+                int to = next * VERTICES_PER_MARKER;
+                System.arraycopy(mVertexData, 3 * from, mVertexData, 3 * to, 3 * vertices);
+                System.arraycopy(mTextureCoordData, 2 * from, mTextureCoordData, 2 * to,
+                        2 * vertices);
+                System.arraycopy(mColorData, 4 * from, mColorData, 4 * to, 4 * vertices);
+                mRouteFirst[route] = next;
+            }
+            next += mRouteCapacity[route];
+        }
+        collapse(next, mCapacity);
+
+        Geometry3D geometry = getGeometry();
+        int vertexCount = mCapacity * VERTICES_PER_MARKER;
+        FloatBuffer vertices = geometry.getVertices();
+        vertices.position(0);
+        vertices.put(mVertexData);
+        for (int route = 0; route < mRouteUsed.length; route++) {
+            if (mRouteUsed[route] && !mRouteVisible[route]) {
+                for (int i = mRouteFirst[route] * VERTICES_PER_MARKER * 3;
+                     i < (mRouteFirst[route] + mRouteCapacity[route]) * VERTICES_PER_MARKER * 3;
+                     i++) {
+                    vertices.put(i, 0);
+                }
+            }
+        }
+        uploadRange(geometry.getVertexBufferInfo(), vertices, null, 0, 3 * vertexCount);
+        uploadRange(geometry.getTexCoordBufferInfo(), geometry.getTextureCoords(),
+                mTextureCoordData, 0, 2 * vertexCount);
+        uploadRange(geometry.getColorBufferInfo(), geometry.getColors(), mColorData, 0,
+                4 * vertexCount);
+    }
+
+    /**
+     * Collapses markers {@code from} (inclusive) to {@code to} (exclusive) to the origin.
+     */
+    private void collapse(int from, int to) {
+        for (int marker = from; marker < to; marker++) {
+            for (int v = 0; v < VERTICES_PER_MARKER; v++) {
+                putVertex(marker, v, 0, 0, 0, 0);
+            }
+        }
+    }
+
+    private void writeColors(int route) {
+        int from = mRouteFirst[route] * VERTICES_PER_MARKER;
+        int to = from + mRouteCapacity[route] * VERTICES_PER_MARKER;
+        for (int vertex = from; vertex < to; vertex++) {
+            System.arraycopy(mRouteColors, 4 * route, mColorData, 4 * vertex, 4);
+        }
+    }
+
+    /**
+     * Uploads the positions of a range of markers, or collapsed positions if it's hidden.
+     */
+    private void uploadVertices(int firstMarker, int markers, boolean visible) {
+        Geometry3D geometry = getGeometry();
+        FloatBuffer vertices = geometry.getVertices();
+        int offset = firstMarker * VERTICES_PER_MARKER * 3;
+        int length = markers * VERTICES_PER_MARKER * 3;
+        if (visible) {
+            uploadRange(geometry.getVertexBufferInfo(), vertices, mVertexData, offset, length);
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                vertices.put(i, 0);
+            }
+            uploadRange(geometry.getVertexBufferInfo(), vertices, null, offset, length);
+        }
+    }
+
+    /**
+     * Copies {@code length} floats of {@code data} from {@code offset} into the same place of the
+     * client side buffer, if not null, and uploads just that part of the GPU buffer.
+     */
+    private void uploadRange(BufferInfo bufferInfo, FloatBuffer buffer, float[] data,
+                             int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (data != null) {
+            buffer.position(offset);
+            buffer.put(data, offset, length);
+        }
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        FloatBuffer range = buffer.slice();
+        buffer.clear();
+        getGeometry().changeBufferData(bufferInfo, range, offset, length);
+    }
+
+    private void putVertex(int marker, int vertex, float x, float y, float z,
+                           float routeDistance) {
+        int index = marker * VERTICES_PER_MARKER + vertex;
+        mVertexData[3 * index] = x;
+        mVertexData[3 * index + 1] = y;
+        mVertexData[3 * index + 2] = z;
+        mTextureCoordData[2 * index] = routeDistance;
+        mTextureCoordData[2 * index + 1] = 0;
+    }
+}
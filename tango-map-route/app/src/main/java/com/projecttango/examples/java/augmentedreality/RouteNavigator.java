@@ -0,0 +1,444 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Per-frame route following for the render camera pose, kept apart from the Rajawali scene.
+ * For every camera pose, the pose is smoothed for the render camera and the raw position is used
+ * to redraw the route from the latest distance field when the user walks away from it, and to
+ * show the waypoints around the user: those of the current floor of a multi-floor plan plus the
+ * next transition, or those of a single floor route.
+ * <p/>
+ * The scene is only reached through {@link Scene}, which pools its markers, and the per-frame
+ * work reuses preallocated arrays, so that a frame neither allocates nor piles up markers.
+ * NOTE: Unless noted otherwise, methods must be called from the OpenGL thread; they are not
+ * thread-safe.
+ */
+public class RouteNavigator {
+    public static final int MAX_ROUTE_POINTS = 4096;
+    // Most waypoints shown at once.
+    public static final int MAX_VISIBLE_WAYPOINTS = 256;
+
+    // Distance from the drawn route, in meters, after which the route is rebuilt.
+    private static final float OFF_ROUTE_DISTANCE = 1.0f;
+    // Only waypoints within this distance of the user, in meters, are shown.
+    private static final float WAYPOINT_VISIBLE_DISTANCE = 10f;
+    // How far the user walks, in meters, before the waypoints are looked up again.
+    private static final float WAYPOINT_REFRESH_DISTANCE = 1f;
+    // Distance in meters between two waypoints along a single floor route.
+    private static final float ROUTE_WAYPOINT_SPACING = 1f;
+    // Number of steps to the destination of a single floor route before it has been drawn.
+    private static final int ROUTE_WAYPOINT_STEPS = 20;
+
+    /**
+     * What the navigator shows, implemented by the renderer on top of the Rajawali scene.
+     * Methods are called from the OpenGL thread.
+     */
+    public interface Scene {
+        /**
+         * Shows waypoint marker {@code index} at the given position. Markers are pooled:
+         * existing ones are moved and only the missing ones are created.
+         */
+        void placeWaypointMarker(int index, float x, float y, float z);
+
+        /**
+         * Drops the waypoint markers past the first {@code count}.
+         */
+        void trimWaypointMarkers(int count);
+
+        /**
+         * Draws the planned route, given as {@code count} x, z positions, at the given height.
+         */
+        void drawRoute(float[] pointsXZ, int count, float height);
+
+        /**
+         * Plans a new route between the given floor positions in the background, to be handed
+         * back with {@link #setRouteField}.
+         */
+        void planRoute(float fromX, float fromZ, float toX, float toZ);
+    }
+
+    private final Scene mScene;
+
+    // Smooths the render camera pose so close markers don't shimmer with pose jitter.
+    private final PoseSmoother mPoseSmoother = new PoseSmoother();
+    private final double[] mSmoothedTranslation = new double[3];
+    private final double[] mSmoothedRotation = new double[4];
+
+    // Route destination and current position on the XZ (floor) plane, shared with the renderer.
+    private float[] mDestination;
+    private float[] mCurrent;
+
+    // Multi-floor waypoints, or null for a single floor route. Only the current floor's
+    // waypoints and the next transition are turned into markers.
+    private volatile FloorPlan mFloorPlan;
+    private volatile int mDestinationFloor;
+    private FloorPlan mShownFloorPlan;
+    private int mCurrentFloor = -1;
+    private final int[] mVisibleWaypoints = new int[MAX_VISIBLE_WAYPOINTS];
+    // Position the shown waypoints were last placed from.
+    private float mWaypointRefreshX = Float.NaN;
+    private float mWaypointRefreshZ = Float.NaN;
+
+    // Distance-to-destination field, computed in the background and published once it's ready.
+    private volatile DistanceField mRouteField;
+    private DistanceField mDrawnRouteField;
+    // Field the user walked out of, for which a new route was asked for.
+    private DistanceField mReplannedField;
+    private final float[] mRoutePoints = new float[2 * MAX_ROUTE_POINTS];
+    private int mRoutePointCount;
+    // Set when the drawn route was imported; it is kept until the user walks away from it.
+    private boolean mKeepDrawnRoute;
+    // Copy of the drawn route for export, guarded by its own monitor.
+    private final WaypointStore mRouteWaypoints = new WaypointStore();
+
+    public RouteNavigator(Scene scene) {
+        mScene = scene;
+    }
+
+    /**
+     * Starts over for a new scene: forgets the shown waypoints and uses the given arrays, shared
+     * with the caller, as the destination and the current position, as x, z.
+     */
+    public void reset(float[] destination, float[] current) {
+        mDestination = destination;
+        mCurrent = current;
+        mShownFloorPlan = null;
+        mCurrentFloor = -1;
+        // Have the waypoints placed on the first camera pose.
+        mWaypointRefreshX = Float.NaN;
+        mWaypointRefreshZ = Float.NaN;
+    }
+
+    /**
+     * Filter applied to the render camera pose, to select and tune from any thread.
+     */
+    public PoseSmoother getPoseSmoother() {
+        return mPoseSmoother;
+    }
+
+    /**
+     * Returns the smoothed camera translation of the latest {@link #update}. Not to be modified.
+     */
+    public double[] getSmoothedTranslation() {
+        return mSmoothedTranslation;
+    }
+
+    /**
+     * Returns the smoothed camera x, y, z, w rotation of the latest {@link #update}. Not to be
+     * modified.
+     */
+    public double[] getSmoothedRotation() {
+        return mSmoothedRotation;
+    }
+
+    /**
+     * Publishes a new distance-to-destination field, from any thread. The route is redrawn from
+     * it on the next {@link #update}. Null stops following the route.
+     */
+    public void setRouteField(DistanceField field) {
+        mRouteField = field;
+    }
+
+    /**
+     * Sets the floor plan of a multi-floor route and the floor of its destination, from any
+     * thread. The plan must have been built. Pass null to go back to a single floor route.
+     */
+    public void setFloorPlan(FloorPlan floorPlan, int destinationFloor) {
+        mDestinationFloor = destinationFloor;
+        mFloorPlan = floorPlan;
+    }
+
+    /**
+     * Plans a new route from the current position: to the next transition towards the
+     * destination floor when on another floor of a multi-floor plan, else to the destination.
+     */
+    public void replan() {
+        replan(mCurrent[0], mCurrent[1]);
+    }
+
+    /**
+     * Follows a new camera pose: smooths it for the render camera, then updates the route and
+     * the waypoints from the raw position, so routing follows the user without lag.
+     *
+     * @param translation x, y, z of the camera, OpenGL engine convention.
+     * @param rotation    x, y, z, w quaternion of the camera, OpenGL engine convention.
+     */
+    public void update(double timestamp, double[] translation, double[] rotation) {
+        mPoseSmoother.filter(timestamp, translation, rotation,
+                mSmoothedTranslation, mSmoothedRotation);
+        float x = (float) translation[0];
+        float y = (float) translation[1];
+        float z = (float) translation[2];
+        updateRoute(x, z);
+        updateFloorWaypoints(x, y, z);
+        updateRouteWaypoints(x, z);
+
+        // Route positions are on the XZ (floor) plane.
+        mCurrent[0] = x;
+        mCurrent[1] = z;
+    }
+
+    /**
+     * Replaces the drawn route with an imported one. The route is drawn as is and kept until the
+     * user walks away from it, even if a new distance field comes in.
+     */
+    public void drawImportedRoute(WaypointStore waypoints) {
+        mRoutePointCount = Math.min(waypoints.size(), MAX_ROUTE_POINTS);
+        for (int i = 0; i < mRoutePointCount; i++) {
+            mRoutePoints[2 * i] = waypoints.getX(i);
+            mRoutePoints[2 * i + 1] = waypoints.getZ(i);
+        }
+        drawRoute();
+        mKeepDrawnRoute = true;
+    }
+
+    /**
+     * Lets the next distance field replace the drawn route even if the user is still on it.
+     */
+    public void releaseDrawnRoute() {
+        mKeepDrawnRoute = false;
+    }
+
+    public int getRoutePointCount() {
+        return mRoutePointCount;
+    }
+
+    public float getRouteX(int i) {
+        return mRoutePoints[2 * i];
+    }
+
+    public float getRouteZ(int i) {
+        return mRoutePoints[2 * i + 1];
+    }
+
+    /**
+     * Copies the drawn route into {@code out}. Can be called from any thread.
+     */
+    public void copyRoute(WaypointStore out) {
+        synchronized (mRouteWaypoints) {
+            out.copyFrom(mRouteWaypoints);
+        }
+    }
+
+    /**
+     * Returns the height routes are drawn at: the current floor of a multi-floor plan, or 0.
+     */
+    public float getRouteHeight() {
+        return mShownFloorPlan != null && mCurrentFloor >= 0
+                ? mShownFloorPlan.getFloorHeight(mCurrentFloor) : 0;
+    }
+
+    /**
+     * Rebuilds the drawn route when a new distance field is available or the user has walked
+     * away from the current one. Rebuilding only follows the precomputed field, so it can be
+     * done within the frame. Once the user walks out of the field, a new one is planned from
+     * there and the drawn route is kept until it comes in.
+     */
+    private void updateRoute(float x, float z) {
+        DistanceField field = mRouteField;
+        if (field == null) {
+            return;
+        }
+        boolean onRoute = distanceToRoute(x, z) <= OFF_ROUTE_DISTANCE;
+        if (field != mDrawnRouteField && mKeepDrawnRoute && onRoute) {
+            mDrawnRouteField = field;
+        }
+        if (field == mDrawnRouteField && onRoute) {
+            return;
+        }
+        if (!field.contains(x, z)) {
+            if (field != mReplannedField) {
+                mReplannedField = field;
+                replan(x, z);
+            }
+            return;
+        }
+        mDrawnRouteField = field;
+        mKeepDrawnRoute = false;
+        int count = field.tracePath(x, z, mRoutePoints, MAX_ROUTE_POINTS);
+        // The destination can't be reached from here; there is nothing new to draw.
+        if (count == 0 && mRoutePointCount == 0) {
+            return;
+        }
+        mRoutePointCount = count;
+        drawRoute();
+    }
+
+    /**
+     * Draws the route currently held in {@code mRoutePoints} and keeps a copy for export.
+     */
+    private void drawRoute() {
+        float height = getRouteHeight();
+        mScene.drawRoute(mRoutePoints, mRoutePointCount, height);
+        // Have the single floor route waypoints placed along the new route.
+        if (mFloorPlan == null) {
+            mWaypointRefreshX = Float.NaN;
+            mWaypointRefreshZ = Float.NaN;
+        }
+        // Exported at the height it is drawn at, which is per floor for a multi-floor route.
+        synchronized (mRouteWaypoints) {
+            mRouteWaypoints.clear();
+            for (int i = 0; i < mRoutePointCount; i++) {
+                mRouteWaypoints.add(mRoutePoints[2 * i], height, mRoutePoints[2 * i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Detects the floor from the camera height and shows the waypoints of that floor around the
+     * user plus the next transition towards the destination floor. Waypoints are only looked up
+     * again when the floor changes or the user has moved, and then only through the current
+     * floor's index.
+     */
+    private void updateFloorWaypoints(float x, float y, float z) {
+        FloorPlan plan = mFloorPlan;
+        if (plan == null) {
+            if (mShownFloorPlan != null) {
+                mShownFloorPlan = null;
+                mCurrentFloor = -1;
+                replan(x, z);
+                mScene.trimWaypointMarkers(0);
+                mWaypointRefreshX = Float.NaN;
+                mWaypointRefreshZ = Float.NaN;
+            }
+            return;
+        }
+        int floor = plan.detectFloor(y, plan == mShownFloorPlan ? mCurrentFloor : -1);
+        float dx = x - mWaypointRefreshX;
+        float dz = z - mWaypointRefreshZ;
+        if (plan == mShownFloorPlan && floor == mCurrentFloor
+                && dx * dx + dz * dz < WAYPOINT_REFRESH_DISTANCE * WAYPOINT_REFRESH_DISTANCE) {
+            return;
+        }
+        boolean floorChanged = plan != mShownFloorPlan || floor != mCurrentFloor;
+        mShownFloorPlan = plan;
+        mCurrentFloor = floor;
+        if (floorChanged) {
+            // Lead to the next transition rather than through the floor or the ceiling.
+            replan(x, z);
+            if (mRoutePointCount > 0) {
+                drawRoute();
+            }
+        }
+        mWaypointRefreshX = x;
+        mWaypointRefreshZ = z;
+
+        WaypointStore waypoints = plan.getWaypoints(floor);
+        int count = plan.queryWaypoints(floor, x, z, WAYPOINT_VISIBLE_DISTANCE,
+                mVisibleWaypoints);
+        int markerCount = 0;
+        for (int i = 0; i < count; i++) {
+            int waypoint = mVisibleWaypoints[i];
+            mScene.placeWaypointMarker(markerCount++, waypoints.getX(waypoint),
+                    waypoints.getY(waypoint), waypoints.getZ(waypoint));
+        }
+        int transition = plan.findNextTransition(floor, mDestinationFloor, x, z);
+        if (transition != FloorPlan.NO_TRANSITION) {
+            mScene.placeWaypointMarker(markerCount++, plan.getTransitionX(transition),
+                    plan.getTransitionY(transition), plan.getTransitionZ(transition));
+        }
+        mScene.trimWaypointMarkers(markerCount);
+    }
+
+    /**
+     * Shows the waypoints of a single floor route that are close to the user, one every
+     * {@link #ROUTE_WAYPOINT_SPACING} meters along the drawn route, or along the straight line to
+     * the destination until a route is drawn. They are only placed again once the user has moved
+     * or the route has been redrawn.
+     */
+    private void updateRouteWaypoints(float x, float z) {
+        // Floor-aware waypoints are placed from the floor plan as the user moves instead.
+        if (mFloorPlan != null) {
+            return;
+        }
+        float distanceX = x - mWaypointRefreshX;
+        float distanceZ = z - mWaypointRefreshZ;
+        if (distanceX * distanceX + distanceZ * distanceZ
+                < WAYPOINT_REFRESH_DISTANCE * WAYPOINT_REFRESH_DISTANCE) {
+            return;
+        }
+        mWaypointRefreshX = x;
+        mWaypointRefreshZ = z;
+
+        float height = getRouteHeight();
+        int markerCount = 0;
+        if (mRoutePointCount > 0) {
+            // Distance walked along the route since the last waypoint; the first point gets one.
+            float sinceWaypoint = ROUTE_WAYPOINT_SPACING;
+            for (int i = 0; i < mRoutePointCount && markerCount < MAX_VISIBLE_WAYPOINTS; i++) {
+                float pointX = mRoutePoints[2 * i];
+                float pointZ = mRoutePoints[2 * i + 1];
+                if (i > 0) {
+                    float stepX = pointX - mRoutePoints[2 * i - 2];
+                    float stepZ = pointZ - mRoutePoints[2 * i - 1];
+                    sinceWaypoint += (float) Math.sqrt(stepX * stepX + stepZ * stepZ);
+                }
+                if (sinceWaypoint < ROUTE_WAYPOINT_SPACING) {
+                    continue;
+                }
+                sinceWaypoint = 0;
+                if (isWaypointVisible(pointX, pointZ, x, z)) {
+                    mScene.placeWaypointMarker(markerCount++, pointX, height, pointZ);
+                }
+            }
+        } else {
+            float stepX = (mDestination[0] - x) / ROUTE_WAYPOINT_STEPS;
+            float stepZ = (mDestination[1] - z) / ROUTE_WAYPOINT_STEPS;
+            for (int i = 0; i <= ROUTE_WAYPOINT_STEPS; i++) {
+                float pointX = x + i * stepX;
+                float pointZ = z + i * stepZ;
+                if (isWaypointVisible(pointX, pointZ, x, z)) {
+                    mScene.placeWaypointMarker(markerCount++, pointX, height, pointZ);
+                }
+            }
+        }
+        mScene.trimWaypointMarkers(markerCount);
+    }
+
+    private static boolean isWaypointVisible(float waypointX, float waypointZ, float x, float z) {
+        float dx = waypointX - x;
+        float dz = waypointZ - z;
+        return dx * dx + dz * dz <= WAYPOINT_VISIBLE_DISTANCE * WAYPOINT_VISIBLE_DISTANCE;
+    }
+
+    private void replan(float x, float z) {
+        FloorPlan plan = mShownFloorPlan;
+        if (plan != null && mCurrentFloor >= 0 && mCurrentFloor != mDestinationFloor) {
+            int transition = plan.findNextTransition(mCurrentFloor, mDestinationFloor, x, z);
+            if (transition != FloorPlan.NO_TRANSITION) {
+                mScene.planRoute(x, z, plan.getTransitionX(transition),
+                        plan.getTransitionZ(transition));
+                return;
+            }
+        }
+        mScene.planRoute(x, z, mDestination[0], mDestination[1]);
+    }
+
+    /**
+     * Returns the distance in meters from the given floor position to the closest point of the
+     * drawn route.
+     */
+    private float distanceToRoute(float x, float z) {
+        float best = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < mRoutePointCount; i++) {
+            float dx = mRoutePoints[2 * i] - x;
+            float dz = mRoutePoints[2 * i + 1] - z;
+            best = Math.min(best, dx * dx + dz * dz);
+        }
+        return (float) Math.sqrt(best);
+    }
+}
@@ -98,7 +98,7 @@ public class StartActivity extends Activity {
     private void startAreaDescriptionActivity() {
         Intent startAdIntent = new Intent(this, AugmentedRealityActivity.class);
         startAdIntent.putExtra(USE_AREA_LEARNING, true);
-        startAdIntent.putExtra(LOAD_ADF, false);
+        startAdIntent.putExtra(LOAD_ADF, mIsLoadAdf);
         startActivity(startAdIntent);
     }
 
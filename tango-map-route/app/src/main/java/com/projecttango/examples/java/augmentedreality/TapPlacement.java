@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns a tap on the camera view into a 3D position, on a worker thread.
+ * The latest point cloud is kept, already transformed to the color camera frame. When the user
+ * taps, a plane is fit to the points projecting near the tapped pixel and the tap ray is
+ * intersected with it. Taps arriving while a fit is running are coalesced: only the latest one is
+ * fit once the worker is free, so the callers never wait and stale taps are dropped.
+ */
+public class TapPlacement {
+    private static final String TAG = TapPlacement.class.getSimpleName();
+
+    // Points projecting within this many pixels of the tap are used for the fit.
+    private static final float TAP_RADIUS_PIXELS = 40f;
+    private static final int MIN_PLANE_POINTS = 10;
+    private static final float MIN_CONFIDENCE = 0.5f;
+    // Hits further than this from the fitted points, in meters, extrapolate the plane too far to
+    // be trusted.
+    private static final double MAX_HIT_DISTANCE = 2.0;
+
+    /**
+     * Receives the placed positions, on the worker thread.
+     */
+    public interface OnPlacedListener {
+        /**
+         * Called with the tapped position in the OpenGL start of service frame.
+         */
+        void onPlaced(float x, float y, float z);
+    }
+
+    /**
+     * One point cloud in the color camera frame, with the camera it was seen from.
+     */
+    private static final class Cloud {
+        float[] points = new float[0];
+        int count;
+        final float[] cameraToWorld = new float[16];
+        float fx;
+        float fy;
+        float cx;
+        float cy;
+        float imageWidth;
+        float imageHeight;
+        long sequence;
+    }
+
+    private final OnPlacedListener mListener;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+    private final Object mCloudLock = new Object();
+    private final AtomicBoolean mFitScheduled = new AtomicBoolean();
+
+    // NOTE: Naming indicates which thread is in charge of updating this variable.
+    private Cloud mBackTangoThread = new Cloud();
+    // Latest cloud, guarded by mCloudLock.
+    private Cloud mLatest = new Cloud();
+    private Cloud mWorkerCloud = new Cloud();
+    private long mCloudSequenceTangoThread;
+    private final float[] mDepthToWorld = new float[16];
+    private final float[] mWorldToCamera = new float[16];
+    private final float[] mDepthToCamera = new float[16];
+
+    // Latest tap, as a fraction of the view size, guarded by mCloudLock.
+    private float mTapX;
+    private float mTapY;
+
+    public TapPlacement(OnPlacedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Keeps a point cloud for the next taps. Same arguments as {@link OcclusionMap#update}.
+     * This is meant to be called from the Tango callback thread.
+     */
+    public void updatePointCloud(FloatBuffer points, int numPoints,
+                                 double[] depthTranslation, double[] depthRotation,
+                                 double[] colorTranslation, double[] colorRotation,
+                                 float fx, float fy, float cx, float cy,
+                                 float imageWidth, float imageHeight) {
+        Cloud cloud = mBackTangoThread;
+        OcclusionMap.poseToMatrix(depthTranslation, depthRotation, mDepthToWorld);
+        OcclusionMap.poseToMatrix(colorTranslation, colorRotation, cloud.cameraToWorld);
+        Matrix.invertM(mWorldToCamera, 0, cloud.cameraToWorld, 0);
+        Matrix.multiplyMM(mDepthToCamera, 0, mWorldToCamera, 0, mDepthToWorld, 0);
+        cloud.fx = fx;
+        cloud.fy = fy;
+        cloud.cx = cx;
+        cloud.cy = cy;
+        cloud.imageWidth = imageWidth;
+        cloud.imageHeight = imageHeight;
+
+        if (cloud.points.length < 3 * numPoints) {
+            cloud.points = new float[3 * numPoints];
+        }
+        float[] m = mDepthToCamera;
+        int count = 0;
+        for (int i = 0; i < numPoints; i++) {
+            if (points.get(4 * i + 3) < MIN_CONFIDENCE) {
+                continue;
+            }
+            float px = points.get(4 * i);
+            float py = points.get(4 * i + 1);
+            float pz = points.get(4 * i + 2);
+            cloud.points[3 * count] = m[0] * px + m[4] * py + m[8] * pz + m[12];
+            cloud.points[3 * count + 1] = m[1] * px + m[5] * py + m[9] * pz + m[13];
+            cloud.points[3 * count + 2] = m[2] * px + m[6] * py + m[10] * pz + m[14];
+            count++;
+        }
+        cloud.count = count;
+        cloud.sequence = ++mCloudSequenceTangoThread;
+
+        synchronized (mCloudLock) {
+            mBackTangoThread = mLatest;
+            mLatest = cloud;
+        }
+    }
+
+    /**
+     * Requests a placement for a tap at the given fraction of the view width and height. Never
+     * blocks; a tap not yet processed is replaced by this one.
+     */
+    public void onTap(float viewX, float viewY) {
+        synchronized (mCloudLock) {
+            mTapX = viewX;
+            mTapY = viewY;
+        }
+        if (mFitScheduled.compareAndSet(false, true)) {
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mFitScheduled.set(false);
+                    fitLatestTap();
+                }
+            });
+        }
+    }
+
+    private void fitLatestTap() {
+        float tapX;
+        float tapY;
+        synchronized (mCloudLock) {
+            tapX = mTapX;
+            tapY = mTapY;
+            // Keep using the cloud of the previous tap unless a newer one arrived.
+            if (mLatest.sequence > mWorkerCloud.sequence) {
+                Cloud latest = mLatest;
+                mLatest = mWorkerCloud;
+                mWorkerCloud = latest;
+            }
+        }
+        Cloud cloud = mWorkerCloud;
+        if (cloud.count < MIN_PLANE_POINTS) {
+            Log.w(TAG, "No point cloud to place the tap on");
+            return;
+        }
+        float u = tapX * cloud.imageWidth;
+        float v = tapY * cloud.imageHeight;
+        // Tap ray direction in the OpenGL camera frame (x right, y up, looking down -z).
+        float rayX = (u - cloud.cx) / cloud.fx;
+        float rayY = -(v - cloud.cy) / cloud.fy;
+        float rayZ = -1;
+
+        // Centroid and covariance of the points projecting near the tap.
+        double sx = 0, sy = 0, sz = 0;
+        double sxx = 0, sxy = 0, sxz = 0, syy = 0, syz = 0, szz = 0;
+        int n = 0;
+        float radiusSquared = TAP_RADIUS_PIXELS * TAP_RADIUS_PIXELS;
+        for (int i = 0; i < cloud.count; i++) {
+            float x = cloud.points[3 * i];
+            float y = cloud.points[3 * i + 1];
+            float z = cloud.points[3 * i + 2];
+            if (z >= 0) {
+                continue;
+            }
+            float du = cloud.fx * x / -z + cloud.cx - u;
+            float dv = cloud.cy - cloud.fy * y / -z - v;
+            if (du * du + dv * dv > radiusSquared) {
+                continue;
+            }
+            sx += x;
+            sy += y;
+            sz += z;
+            sxx += x * x;
+            sxy += x * y;
+            sxz += x * z;
+            syy += y * y;
+            syz += y * z;
+            szz += z * z;
+            n++;
+        }
+        if (n < MIN_PLANE_POINTS) {
+            Log.w(TAG, "Not enough depth points near the tap: " + n);
+            return;
+        }
+        double mx = sx / n, my = sy / n, mz = sz / n;
+        double xx = sxx / n - mx * mx, xy = sxy / n - mx * my, xz = sxz / n - mx * mz;
+        double yy = syy / n - my * my, yz = syz / n - my * mz, zz = szz / n - mz * mz;
+
+        // Plane normal: the cross product of two covariance rows with the largest
+        // determinant, i.e. the direction of least variance.
+        double detX = yy * zz - yz * yz;
+        double detY = xx * zz - xz * xz;
+        double detZ = xx * yy - xy * xy;
+        double nx, ny, nz;
+        if (detX >= detY && detX >= detZ) {
+            nx = detX;
+            ny = xz * yz - xy * zz;
+            nz = xy * yz - xz * yy;
+        } else if (detY >= detZ) {
+            nx = xz * yz - xy * zz;
+            ny = detY;
+            nz = xy * xz - yz * xx;
+        } else {
+            nx = xy * yz - xz * yy;
+            ny = xy * xz - yz * xx;
+            nz = detZ;
+        }
+        double denominator = nx * rayX + ny * rayY + nz * rayZ;
+        if (Math.abs(denominator) < 1e-9) {
+            Log.w(TAG, "Tap ray parallel to the fitted plane");
+            return;
+        }
+        double t = (nx * mx + ny * my + nz * mz) / denominator;
+        // The ray has a unit z component, so t is also the depth of the hit.
+        if (t <= 0 || t > OcclusionMap.MAX_DEPTH) {
+            Log.w(TAG, "Tap hit out of the depth range: " + t);
+            return;
+        }
+        float cameraX = (float) (rayX * t);
+        float cameraY = (float) (rayY * t);
+        float cameraZ = (float) (rayZ * t);
+        double dx = cameraX - mx;
+        double dy = cameraY - my;
+        double dz = cameraZ - mz;
+        if (dx * dx + dy * dy + dz * dz > MAX_HIT_DISTANCE * MAX_HIT_DISTANCE) {
+            Log.w(TAG, "Tap hit too far from the fitted points");
+            return;
+        }
+        float[] m = cloud.cameraToWorld;
+        mListener.onPlaced(
+                m[0] * cameraX + m[4] * cameraY + m[8] * cameraZ + m[12],
+                m[1] * cameraX + m[5] * cameraY + m[9] * cameraZ + m[13],
+                m[2] * cameraX + m[6] * cameraY + m[10] * cameraZ + m[14]);
+    }
+
+    public void shutdown() {
+        mWorker.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of the waypoint markers in the scene, indexed like {@link RouteNavigator.Scene} places
+ * them: existing markers are reused, and trimmed markers are kept aside to be added back, so that
+ * markers are only created when more are shown than ever before. Subclasses create the markers
+ * and add them to and remove them from the scene.
+ * <p/>
+ * NOTE: This class is not thread-safe.
+ */
+public abstract class WaypointMarkerPool<T> {
+    private final List<T> mMarkers = new ArrayList<T>();
+    private final List<T> mSpareMarkers = new ArrayList<T>();
+
+    /**
+     * Creates a marker, not yet in the scene.
+     */
+    protected abstract T createMarker();
+
+    /**
+     * Adds a marker to the scene.
+     */
+    protected abstract void addMarker(T marker);
+
+    /**
+     * Removes a marker from the scene.
+     */
+    protected abstract void removeMarker(T marker);
+
+    /**
+     * Returns marker {@code index}, adding it to the scene if it is the next one.
+     *
+     * @throws IllegalArgumentException if markers before {@code index} are missing.
+     */
+    public T place(int index) {
+        if (index < mMarkers.size()) {
+            return mMarkers.get(index);
+        }
+        if (index > mMarkers.size()) {
+            throw new IllegalArgumentException("Marker " + index + " placed past the "
+                    + mMarkers.size() + " pooled ones");
+        }
+        T marker = mSpareMarkers.isEmpty()
+                ? createMarker() : mSpareMarkers.remove(mSpareMarkers.size() - 1);
+        addMarker(marker);
+        mMarkers.add(marker);
+        return marker;
+    }
+
+    /**
+     * Removes the markers past the first {@code count} from the scene.
+     */
+    public void trim(int count) {
+        while (mMarkers.size() > count) {
+            T marker = mMarkers.remove(mMarkers.size() - 1);
+            removeMarker(marker);
+            mSpareMarkers.add(marker);
+        }
+    }
+
+    /**
+     * Forgets all the markers without removing them, for when the scene is rebuilt.
+     */
+    public void clear() {
+        mMarkers.clear();
+        mSpareMarkers.clear();
+    }
+
+    public int size() {
+        return mMarkers.size();
+    }
+
+    public T get(int index) {
+        return mMarkers.get(index);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Ordered list of route waypoints in the OpenGL start of service frame, stored as a growable
+ * primitive array of interleaved x, y, z positions.
+ * <p/>
+ * NOTE: This class is not thread-safe.
+ */
+public class WaypointStore {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private float[] mPositions = new float[3 * INITIAL_CAPACITY];
+    private int mCount;
+
+    public void add(float x, float y, float z) {
+        if (3 * mCount == mPositions.length) {
+            mPositions = Arrays.copyOf(mPositions, 2 * mPositions.length);
+        }
+        mPositions[3 * mCount] = x;
+        mPositions[3 * mCount + 1] = y;
+        mPositions[3 * mCount + 2] = z;
+        mCount++;
+    }
+
+    /**
+     * Replaces waypoint {@code i}, which must already exist.
+     */
+    public void set(int i, float x, float y, float z) {
+        mPositions[3 * i] = x;
+        mPositions[3 * i + 1] = y;
+        mPositions[3 * i + 2] = z;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public float getX(int i) {
+        return mPositions[3 * i];
+    }
+
+    public float getY(int i) {
+        return mPositions[3 * i + 1];
+    }
+
+    public float getZ(int i) {
+        return mPositions[3 * i + 2];
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Replaces the contents of this store with those of {@code other}.
+     */
+    public void copyFrom(WaypointStore other) {
+        if (mPositions.length < 3 * other.mCount) {
+            mPositions = new float[other.mPositions.length];
+        }
+        System.arraycopy(other.mPositions, 0, mPositions, 0, 3 * other.mCount);
+        mCount = other.mCount;
+    }
+}
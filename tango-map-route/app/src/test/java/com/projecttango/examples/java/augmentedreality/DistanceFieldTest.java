@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the distances and the traced routes of {@link DistanceField}, with tiles relaxed on the
+ * calling thread and in parallel.
+ */
+public class DistanceFieldTest {
+    private static final float CELL_SIZE = 0.25f;
+    // The grid spans several tiles, so that distances have to flow between them.
+    private static final int COLUMNS = 100;
+    private static final int ROWS = 80;
+    private static final float TOLERANCE = 1e-3f;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void openFloorDistancesAreOctileDistances() throws InterruptedException {
+        for (ExecutorService executor : new ExecutorService[]{null, mExecutor}) {
+            DistanceField field = new DistanceField(0, 0, CELL_SIZE, COLUMNS, ROWS);
+            field.compute(new float[]{1.1f, 1.1f}, 1, executor);
+            assertTrue(field.isReady());
+            // 60 cells along x and 40 along z from the goal cell: 40 diagonal steps, 20 straight.
+            float expected = CELL_SIZE * (40 * (float) Math.sqrt(2) + 20);
+            assertEquals(expected, field.getDistance(1.1f + 60 * CELL_SIZE,
+                    1.1f + 40 * CELL_SIZE), TOLERANCE);
+            assertEquals(0, field.getDistance(1.1f, 1.1f), 0);
+        }
+    }
+
+    @Test
+    public void tracedPathGoesDownhillToTheGoal() throws InterruptedException {
+        DistanceField field = new DistanceField(0, 0, CELL_SIZE, COLUMNS, ROWS);
+        field.compute(new float[]{2.1f, 3.1f}, 1, mExecutor);
+        float[] path = new float[2 * COLUMNS * ROWS];
+        int count = field.tracePath(20.1f, 15.1f, path, COLUMNS * ROWS);
+
+        assertTrue("Path has " + count + " points", count > 1);
+        assertEquals(20.125f, path[0], TOLERANCE);
+        assertEquals(15.125f, path[1], TOLERANCE);
+        assertEquals(2.125f, path[2 * count - 2], TOLERANCE);
+        assertEquals(3.125f, path[2 * count - 1], TOLERANCE);
+        for (int i = 1; i < count; i++) {
+            assertTrue("Distance increases at point " + i,
+                    field.getDistance(path[2 * i], path[2 * i + 1])
+                            < field.getDistance(path[2 * i - 2], path[2 * i - 1]));
+        }
+    }
+
+    @Test
+    public void pathGoesAroundAWall() throws InterruptedException {
+        DistanceField field = new DistanceField(0, 0, CELL_SIZE, COLUMNS, ROWS);
+        // Wall across x = 10 with a single opening at the top rows.
+        for (int row = 0; row < ROWS - 4; row++) {
+            field.setBlocked(10.1f, (row + 0.5f) * CELL_SIZE, true);
+        }
+        field.compute(new float[]{15, 2}, 1, mExecutor);
+        float[] path = new float[2 * COLUMNS * ROWS];
+        int count = field.tracePath(5, 2, path, COLUMNS * ROWS);
+
+        assertTrue("Path has " + count + " points", count > 1);
+        float maxZ = 0;
+        for (int i = 0; i < count; i++) {
+            maxZ = Math.max(maxZ, path[2 * i + 1]);
+        }
+        assertTrue("Path only goes up to z = " + maxZ, maxZ >= (ROWS - 4) * CELL_SIZE);
+        assertTrue(field.getDistance(5, 2) > 10);
+    }
+
+    @Test
+    public void offGridAndUnreachableQueriesHaveNoRoute() throws InterruptedException {
+        DistanceField field = new DistanceField(0, 0, CELL_SIZE, COLUMNS, ROWS);
+        // Goal boxed in by walls.
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                if (i != 0 || j != 0) {
+                    field.setBlocked(5 + i * CELL_SIZE, 5 + j * CELL_SIZE, true);
+                }
+            }
+        }
+        field.compute(new float[]{5, 5}, 1, mExecutor);
+        float[] path = new float[2 * COLUMNS * ROWS];
+        float[] direction = new float[2];
+
+        assertFalse(field.contains(-1, 5));
+        assertFalse(field.contains(5, ROWS * CELL_SIZE + 1));
+        assertEquals(0, field.tracePath(-1, 5, path, COLUMNS * ROWS));
+        assertEquals(Float.POSITIVE_INFINITY, field.getDistance(-1, 5), 0);
+        assertFalse(field.getDirection(-1, 5, direction));
+
+        assertTrue(field.contains(10, 10));
+        assertEquals(0, field.tracePath(10, 10, path, COLUMNS * ROWS));
+        assertEquals(Float.POSITIVE_INFINITY, field.getDistance(10, 10), 0);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded-like pose stream through {@link PoseSmoother} with its default parameters:
+ * 15 s standing still then 15 s walking at 1 m/s, at 30 Hz, with 3 mm of position jitter and
+ * some rotation jitter. The filter has to remove most of the jitter when still without lagging
+ * noticeably behind when walking.
+ */
+public class PoseSmootherTest {
+    private static final double FRAME_RATE = 30;
+    private static final int STILL_FRAMES = 450;
+    private static final int WALKING_FRAMES = 450;
+    // Frames left for the filter to settle after it starts and after the walk starts.
+    private static final int SETTLING_FRAMES = 30;
+    private static final double WALKING_SPEED = 1.0;
+    private static final double POSITION_JITTER = 0.003;
+    private static final double ANGLE_JITTER = 0.002;
+
+    // Filtered frame to frame movement when still, relative to the raw one.
+    private static final double MAX_STILL_JITTER_RATIO = 0.20;
+    // Mean distance behind the true position when walking, in seconds at walking speed.
+    private static final double MAX_WALKING_LAG = 0.0145;
+
+    @Test
+    public void removesJitterWithoutLagging() {
+        PoseSmoother smoother = new PoseSmoother();
+        Random random = new Random(1);
+        double[] translation = new double[3];
+        double[] rotation = new double[]{0, 0, 0, 1};
+        double[] outTranslation = new double[3];
+        double[] outRotation = new double[4];
+
+        double rawJitter = 0;
+        double filteredJitter = 0;
+        double lag = 0;
+        int lagSamples = 0;
+        double previousRaw = 0;
+        double previousFiltered = 0;
+        for (int frame = 0; frame < STILL_FRAMES + WALKING_FRAMES; frame++) {
+            double timestamp = frame / FRAME_RATE;
+            boolean walking = frame >= STILL_FRAMES;
+            double truth = walking
+                    ? (frame - STILL_FRAMES) / FRAME_RATE * WALKING_SPEED : 0;
+            translation[0] = truth + POSITION_JITTER * random.nextGaussian();
+            double angle = ANGLE_JITTER * random.nextGaussian();
+            rotation[1] = Math.sin(angle / 2);
+            rotation[3] = Math.cos(angle / 2);
+
+            smoother.filter(timestamp, translation, rotation, outTranslation, outRotation);
+
+            if (!walking && frame > SETTLING_FRAMES) {
+                rawJitter += Math.abs(translation[0] - previousRaw);
+                filteredJitter += Math.abs(outTranslation[0] - previousFiltered);
+            }
+            if (walking && frame > STILL_FRAMES + SETTLING_FRAMES) {
+                lag += truth - outTranslation[0];
+                lagSamples++;
+            }
+            previousRaw = translation[0];
+            previousFiltered = outTranslation[0];
+        }
+
+        double jitterRatio = filteredJitter / rawJitter;
+        double lagSeconds = lag / lagSamples / WALKING_SPEED;
+        assertTrue("Still jitter is " + jitterRatio + " of the raw jitter",
+                jitterRatio <= MAX_STILL_JITTER_RATIO);
+        assertTrue("Lags " + lagSeconds + " s behind when walking",
+                lagSeconds <= MAX_WALKING_LAG);
+    }
+}
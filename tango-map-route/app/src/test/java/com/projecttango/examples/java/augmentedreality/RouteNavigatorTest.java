@@ -0,0 +1,398 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Headless allocation and frame budget checks of the per-frame camera pose path: the pose
+ * smoother, route following and waypoint placement of {@link RouteNavigator}, fed recorded poses
+ * and placing its markers through the renderer's {@link WaypointMarkerPool}.
+ * <p/>
+ * Everything that needs Tango or a GL context is out of scope here and left to on-device runs:
+ * the Tango callbacks, {@code updateRenderCameraPose}, the Rajawali scene graph, the occlusion
+ * culling of the markers and picking.
+ * <p/>
+ * The frame budgets are absolute wall-clock times, only meaningful on a quiet machine, so they
+ * are only checked with {@code -DframeBudgets=true}.
+ */
+public class RouteNavigatorTest {
+    private static final double FRAME_RATE = 30;
+    private static final int WARM_UP_FRAMES = 3000;
+    private static final int MEASURED_FRAMES = 3000;
+    private static final String FRAME_BUDGETS_PROPERTY = "frameBudgets";
+    // The navigator gets a small share of a 60 Hz frame, even on the frames retracing the route.
+    // The slowest 1% of the frames are left out as they mostly measure the scheduler.
+    private static final long MEAN_FRAME_BUDGET_NANOS = 500000;
+    private static final long P99_FRAME_BUDGET_NANOS = 2000000;
+    // JIT deoptimizations can allocate a few bytes on the measuring thread now and then, while a
+    // per-frame allocation shows in every pass: the least allocating of a few passes must be 0.
+    private static final int ALLOCATION_PASSES = 3;
+    // The walk goes up to the second floor and back every this many frames.
+    private static final int FRAMES_PER_FLOOR = 400;
+    private static final float[] FLOOR_HEIGHTS = new float[]{0, 3};
+    private static final float DEVICE_HEIGHT = 1.4f;
+
+    /**
+     * Stand-in for the renderer's scene: pools x, y, z positions in the renderer's marker pool
+     * instead of spheres, counting the markers created, added to and removed from the scene.
+     */
+    private static final class FakeScene implements RouteNavigator.Scene {
+        final WaypointMarkerPool<float[]> pool = new WaypointMarkerPool<float[]>() {
+            @Override
+            protected float[] createMarker() {
+                markersCreated++;
+                return new float[3];
+            }
+
+            @Override
+            protected void addMarker(float[] marker) {
+                markersAdded++;
+            }
+
+            @Override
+            protected void removeMarker(float[] marker) {
+                markersRemoved++;
+            }
+        };
+        int markersCreated;
+        int markersAdded;
+        int markersRemoved;
+        int maxMarkers;
+        int routeDraws;
+        int emptyRouteDraws;
+        int routePlans;
+        float planFromX;
+        float planFromZ;
+        float planToX;
+        float planToZ;
+
+        @Override
+        public void placeWaypointMarker(int index, float x, float y, float z) {
+            float[] marker = pool.place(index);
+            marker[0] = x;
+            marker[1] = y;
+            marker[2] = z;
+            maxMarkers = Math.max(maxMarkers, pool.size());
+        }
+
+        @Override
+        public void trimWaypointMarkers(int count) {
+            pool.trim(count);
+        }
+
+        @Override
+        public void drawRoute(float[] pointsXZ, int count, float height) {
+            routeDraws++;
+            if (count == 0) {
+                emptyRouteDraws++;
+            }
+        }
+
+        @Override
+        public void planRoute(float fromX, float fromZ, float toX, float toZ) {
+            routePlans++;
+            planFromX = fromX;
+            planFromZ = fromZ;
+            planToX = toX;
+            planToZ = toZ;
+        }
+    }
+
+    private ExecutorService mExecutor;
+    private FakeScene mScene;
+    private RouteNavigator mNavigator;
+    // Recorded walk: timestamp, translation and rotation of every frame.
+    private double[] mTimestamps;
+    private double[] mTranslations;
+    private double[] mRotations;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mScene = new FakeScene();
+        mNavigator = new RouteNavigator(mScene);
+        float[] destination = new float[]{-5, -10};
+        mNavigator.reset(destination, new float[]{0, 0});
+        DistanceField field = new DistanceField(-20, -25, 0.25f, 160, 160);
+        field.compute(new float[]{destination[0], destination[1]}, 1, mExecutor);
+        mNavigator.setRouteField(field);
+        recordWalk(WARM_UP_FRAMES + MEASURED_FRAMES);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void floorPlanFrameStaysWithinBudget() {
+        assumeTrue(Boolean.getBoolean(FRAME_BUDGETS_PROPERTY));
+        mNavigator.setFloorPlan(buildFloorPlan(), 1);
+        runFrames(0, WARM_UP_FRAMES);
+
+        long[] durations = new long[MEASURED_FRAMES];
+        long total = 0;
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            long start = System.nanoTime();
+            runFrame(WARM_UP_FRAMES + i);
+            durations[i] = System.nanoTime() - start;
+            total += durations[i];
+        }
+        Arrays.sort(durations);
+        long mean = total / MEASURED_FRAMES;
+        long p99 = durations[MEASURED_FRAMES * 99 / 100];
+        assertTrue("Mean frame took " + mean + " ns", mean <= MEAN_FRAME_BUDGET_NANOS);
+        assertTrue("99th percentile frame took " + p99 + " ns", p99 <= P99_FRAME_BUDGET_NANOS);
+    }
+
+    @Test
+    public void floorPlanFrameDoesNotAllocate() {
+        mNavigator.setFloorPlan(buildFloorPlan(), 1);
+        assertFramesDoNotAllocate();
+    }
+
+    @Test
+    public void singleFloorFrameDoesNotAllocate() {
+        assertFramesDoNotAllocate();
+    }
+
+    @Test
+    public void waypointMarkersDoNotPileUp() {
+        FloorPlan plan = buildFloorPlan();
+        int frames = WARM_UP_FRAMES + MEASURED_FRAMES;
+        for (int frame = 0; frame < frames; frame++) {
+            // Switch between the floor plan and the single floor route now and then.
+            if (frame % 1000 == 0) {
+                mNavigator.setFloorPlan(frame % 2000 == 0 ? plan : null, 1);
+            }
+            runFrame(frame);
+        }
+        assertTrue("Route was never drawn", mScene.routeDraws > 0);
+        assertTrue("Markers piled up to " + mScene.maxMarkers,
+                mScene.maxMarkers <= RouteNavigator.MAX_VISIBLE_WAYPOINTS + 1);
+        assertEquals("Markers left in the scene", mScene.pool.size(),
+                mScene.markersAdded - mScene.markersRemoved);
+        assertEquals("Markers created", mScene.maxMarkers, mScene.markersCreated);
+    }
+
+    @Test
+    public void walkingOutOfTheFieldReplansOnce() throws InterruptedException {
+        // Walk east, straight out of a field only covering the start and the destination.
+        DistanceField field = new DistanceField(-10, -15, 0.25f, 60, 80);
+        field.compute(new float[]{-5, -10}, 1, null);
+        mNavigator.setRouteField(field);
+        double[] translation = new double[]{0, DEVICE_HEIGHT, 0};
+        double[] rotation = new double[]{0, 0, 0, 1};
+        int frames = 300;
+        for (int frame = 0; frame < frames; frame++) {
+            translation[0] = frame / FRAME_RATE;
+            mNavigator.update(frame / FRAME_RATE, translation, rotation);
+        }
+        assertEquals("Route plans", 1, mScene.routePlans);
+        assertEquals("Empty route draws", 0, mScene.emptyRouteDraws);
+        assertTrue("Planned from " + mScene.planFromX, mScene.planFromX >= 5);
+
+        // The new field, planned from where the user left the old one, brings the route back.
+        int drawsBefore = mScene.routeDraws;
+        DistanceField replanned = new DistanceField(-10, -15, 0.25f, 120, 80);
+        replanned.compute(new float[]{-5, -10}, 1, null);
+        mNavigator.setRouteField(replanned);
+        mNavigator.update(frames / FRAME_RATE, translation, rotation);
+        assertEquals("Route draws", drawsBefore + 1, mScene.routeDraws);
+        assertTrue("Route has " + mNavigator.getRoutePointCount() + " points",
+                mNavigator.getRoutePointCount() > 0);
+        assertEquals("Empty route draws", 0, mScene.emptyRouteDraws);
+    }
+
+    @Test
+    public void singleFloorWaypointsLeadToTheDestination() throws InterruptedException {
+        // Destinations on every side of the start, east of it included.
+        float[][] destinations = new float[][]{{8, 0}, {-8, 0}, {0, 8}, {6, -6}};
+        for (float[] destination : destinations) {
+            mScene = new FakeScene();
+            mNavigator = new RouteNavigator(mScene);
+            mNavigator.reset(destination, new float[]{0, 0});
+            double[] translation = new double[]{0.1, DEVICE_HEIGHT, 0.1};
+            double[] rotation = new double[]{0, 0, 0, 1};
+
+            // Before a route is drawn, the waypoints go straight to the destination.
+            mNavigator.update(0, translation, rotation);
+            assertWaypointsOnLine(destination);
+
+            DistanceField field = new DistanceField(-10, -10, 0.25f, 80, 80);
+            field.compute(destination, 1, null);
+            mNavigator.setRouteField(field);
+            mNavigator.update(1 / FRAME_RATE, translation, rotation);
+            assertTrue("Route was never drawn", mScene.routeDraws > 0);
+            assertWaypointsOnLine(destination);
+        }
+    }
+
+    /**
+     * Checks that there are waypoint markers, all of them close to the line from the start to
+     * the given destination, spread from one end to the other.
+     */
+    private void assertWaypointsOnLine(float[] destination) {
+        assertTrue("No waypoints towards " + destination[0] + ", " + destination[1],
+                mScene.pool.size() > 1);
+        float length = (float) Math.hypot(destination[0], destination[1]);
+        float minAlong = Float.POSITIVE_INFINITY;
+        float maxAlong = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < mScene.pool.size(); i++) {
+            float[] marker = mScene.pool.get(i);
+            float along = (marker[0] * destination[0] + marker[2] * destination[1]) / length;
+            float across = (marker[0] * destination[1] - marker[2] * destination[0]) / length;
+            assertTrue("Waypoint " + i + " is " + across + " m off the route",
+                    Math.abs(across) <= 0.5f);
+            minAlong = Math.min(minAlong, along);
+            maxAlong = Math.max(maxAlong, along);
+        }
+        assertTrue("Waypoints start " + minAlong + " m along the route", minAlong <= 1);
+        assertTrue("Waypoints end " + maxAlong + " m along the route", maxAlong >= length - 1);
+    }
+
+    @Test
+    public void copiedRouteKeepsTheFloorHeight() {
+        mNavigator.setFloorPlan(buildFloorPlan(), 1);
+        double[] translation = new double[]{-3, FLOOR_HEIGHTS[1] + DEVICE_HEIGHT, 0};
+        mNavigator.update(0, translation, new double[]{0, 0, 0, 1});
+        WaypointStore route = new WaypointStore();
+        mNavigator.copyRoute(route);
+        assertTrue("Route was never drawn", route.size() > 0);
+        for (int i = 0; i < route.size(); i++) {
+            assertEquals("Height of waypoint " + i, FLOOR_HEIGHTS[1], route.getY(i), 0);
+        }
+    }
+
+    @Test
+    public void otherFloorRoutesToTheNextTransition() {
+        mNavigator.setFloorPlan(buildFloorPlan(), 1);
+        double[] translation = new double[]{-3, FLOOR_HEIGHTS[0] + DEVICE_HEIGHT, 0};
+        double[] rotation = new double[]{0, 0, 0, 1};
+        mNavigator.update(0, translation, rotation);
+        assertEquals("Route plans", 1, mScene.routePlans);
+        assertEquals("Planned to x", 5, mScene.planToX, 0);
+        assertEquals("Planned to z", -5, mScene.planToZ, 0);
+
+        // Up the stairs, the route leads to the destination again.
+        translation[1] = FLOOR_HEIGHTS[1] + DEVICE_HEIGHT;
+        mNavigator.update(1 / FRAME_RATE, translation, rotation);
+        assertEquals("Route plans", 2, mScene.routePlans);
+        assertEquals("Planned to x", -5, mScene.planToX, 0);
+        assertEquals("Planned to z", -10, mScene.planToZ, 0);
+    }
+
+    /**
+     * Runs the warm-up frames, then checks that the measured frames allocate nothing, net of
+     * what measuring itself allocates.
+     */
+    private void assertFramesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        runFrames(0, WARM_UP_FRAMES);
+        int drawsBefore = mScene.routeDraws;
+        long baselineStart = threads.getThreadAllocatedBytes(thread);
+        long baseline = threads.getThreadAllocatedBytes(thread) - baselineStart;
+        long allocated = Long.MAX_VALUE;
+        for (int pass = 0; pass < ALLOCATION_PASSES && allocated > 0; pass++) {
+            long start = threads.getThreadAllocatedBytes(thread);
+            runFrames(WARM_UP_FRAMES, WARM_UP_FRAMES + MEASURED_FRAMES);
+            allocated = Math.min(allocated,
+                    threads.getThreadAllocatedBytes(thread) - start - baseline);
+        }
+
+        assertTrue("The measured frames never redrew the route", mScene.routeDraws > drawsBefore);
+        assertEquals("Bytes allocated by " + MEASURED_FRAMES + " frames", 0, allocated);
+    }
+
+    private void runFrames(int from, int to) {
+        for (int frame = from; frame < to; frame++) {
+            runFrame(frame);
+        }
+    }
+
+    private void runFrame(int frame) {
+        System.arraycopy(mTranslations, 3 * frame, mTranslation, 0, 3);
+        System.arraycopy(mRotations, 4 * frame, mRotation, 0, 4);
+        mNavigator.update(mTimestamps[frame], mTranslation, mRotation);
+    }
+
+    /**
+     * Records a walk at 1 m/s around a loop that keeps leaving the route, taking the stairs up
+     * and down now and then, with some pose jitter.
+     */
+    private void recordWalk(int frames) {
+        mTimestamps = new double[frames];
+        mTranslations = new double[3 * frames];
+        mRotations = new double[4 * frames];
+        Random random = new Random(1);
+        double radius = 6;
+        for (int frame = 0; frame < frames; frame++) {
+            double time = frame / FRAME_RATE;
+            double angle = time / radius;
+            int floor = (frame / FRAMES_PER_FLOOR) % FLOOR_HEIGHTS.length;
+            mTimestamps[frame] = time;
+            mTranslations[3 * frame] = radius * Math.cos(angle) + 0.003 * random.nextGaussian();
+            mTranslations[3 * frame + 1] = FLOOR_HEIGHTS[floor] + DEVICE_HEIGHT
+                    + 0.003 * random.nextGaussian();
+            mTranslations[3 * frame + 2] = -5 + radius * Math.sin(angle)
+                    + 0.003 * random.nextGaussian();
+            // Looking along the walk, a rotation about the vertical axis.
+            double heading = -angle / 2;
+            mRotations[4 * frame + 1] = Math.sin(heading);
+            mRotations[4 * frame + 3] = Math.cos(heading);
+        }
+    }
+
+    /**
+     * Builds two floors with a waypoint every meter and stairs between them, dense enough for
+     * the visible waypoints to hit their limit.
+     */
+    private static FloorPlan buildFloorPlan() {
+        FloorPlan plan = new FloorPlan(FLOOR_HEIGHTS);
+        for (int floor = 0; floor < FLOOR_HEIGHTS.length; floor++) {
+            for (int x = -15; x <= 15; x++) {
+                for (int z = -20; z <= 10; z++) {
+                    plan.addWaypoint(floor, x, FLOOR_HEIGHTS[floor], z);
+                }
+            }
+        }
+        plan.addTransition(FloorPlan.TRANSITION_STAIRS, 0, 1, 5, FLOOR_HEIGHTS[0], -5);
+        plan.addTransition(FloorPlan.TRANSITION_STAIRS, 1, 0, 5, FLOOR_HEIGHTS[1], -5);
+        plan.build();
+        return plan;
+    }
+}